@@ -19,6 +19,7 @@ package com.dbeaver.osgi.dependency.processing;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.jkiss.code.NotNull;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
 import com.dbeaver.osgi.dependency.processing.util.Version;
 import com.dbeaver.osgi.dependency.processing.util.VersionRange;
 import org.jkiss.utils.Pair;
@@ -94,8 +95,8 @@ public class BundleInfo implements ModuleInfo {
         @Nullable String requiredExecutionEnvironment
     ) {
         this.path = path;
-        this.bundleName = bundleName;
-        this.bundleVersion = bundleVersion;
+        this.bundleName = SymbolTable.INSTANCE.intern(bundleName);
+        this.bundleVersion = SymbolTable.INSTANCE.intern(bundleVersion);
         this.classpathLibs = classpathLibs;
         this.requireBundles = requireBundles;
         this.reexportedBundles = reexportedBundles;
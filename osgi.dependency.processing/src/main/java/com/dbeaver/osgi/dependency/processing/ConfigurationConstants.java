@@ -38,4 +38,14 @@ public class ConfigurationConstants {
     public static final String FEATURES_FOLDER = "features";
     public static final Object TEST_LIBRARIES = "testLibraries";
     public static final String ASSOCIATED_PROPERTIES = "associateProperties";
+    public static final String REPOSITORY_INDEXING_PARALLELISM_PARAM = "repositoryIndexingParallelism";
+    public static final String REPOSITORY_OFF_HEAP_STORAGE_PARAM = "repositoryOffHeapStorage";
+    public static final String TARGET_ENVIRONMENTS_PARAM = "targetEnvironments";
+    public static final String REPOSITORY_PARALLEL_CONTENT_PARSING_PARAM = "repositoryParallelContentParsing";
+    public static final String REPOSITORY_MIRRORS_PARAM = "repositoryMirrors";
+    public static final String REPOSITORY_DOWNLOAD_PARALLELISM_PARAM = "repositoryDownloadParallelism";
+    public static final String REPOSITORY_HOST_DOWNLOAD_PARALLELISM_PARAM = "repositoryHostDownloadParallelism";
+    public static final String REPOSITORY_CONNECT_TIMEOUT_PARAM = "repositoryConnectTimeout";
+    public static final String REPOSITORY_RESPONSE_TIMEOUT_PARAM = "repositoryResponseTimeout";
+    public static final String REPOSITORY_ARTIFACT_STORE_PARAM = "repositoryArtifactStore";
 }
@@ -0,0 +1,101 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2;
+
+import com.dbeaver.osgi.dependency.processing.Artifact;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Artifacts of a repository hashed by id (case-insensitive) and version string.
+ * Both are kept as symbol ids packed into a single long key.
+ * Checksums are kept per classifier, a feature and a bundle may share the id and version.
+ */
+public class ArtifactIndex {
+    private final Map<Long, Artifact> artifacts = new HashMap<>();
+    private final Map<String, Map<Long, ArtifactChecksum>> checksums = new HashMap<>();
+
+    public void add(@NotNull Artifact artifact) {
+        add(artifact, null);
+    }
+
+    public void add(@NotNull Artifact artifact, @Nullable ArtifactChecksum checksum) {
+        long key = getKey(artifact.id(), artifact.version().toString());
+        artifacts.putIfAbsent(key, artifact);
+        if (checksum != null && artifact.classifier() != null) {
+            checksums.computeIfAbsent(artifact.classifier(), it -> new HashMap<>()).putIfAbsent(key, checksum);
+        }
+    }
+
+    public boolean contains(@Nullable String id, @Nullable String version) {
+        return get(id, version) != null;
+    }
+
+    @Nullable
+    public Artifact get(@Nullable String id, @Nullable String version) {
+        if (id == null || version == null) {
+            return null;
+        }
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        int idSymbol = symbols.findId(id.toLowerCase(Locale.ENGLISH));
+        int versionSymbol = symbols.findId(version);
+        if (idSymbol < 0 || versionSymbol < 0) {
+            return null;
+        }
+        return artifacts.get(getKey(idSymbol, versionSymbol));
+    }
+
+    /**
+     * @return checksum of the canonical artifact file or null if the repository does not publish it
+     */
+    @Nullable
+    public ArtifactChecksum getChecksum(@NotNull String classifier, @Nullable String id, @Nullable String version) {
+        Map<Long, ArtifactChecksum> classifierChecksums = checksums.get(classifier);
+        if (classifierChecksums == null || id == null || version == null) {
+            return null;
+        }
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        int idSymbol = symbols.findId(id.toLowerCase(Locale.ENGLISH));
+        int versionSymbol = symbols.findId(version);
+        if (idSymbol < 0 || versionSymbol < 0) {
+            return null;
+        }
+        return classifierChecksums.get(getKey(idSymbol, versionSymbol));
+    }
+
+    public int size() {
+        return artifacts.size();
+    }
+
+    private static long getKey(@NotNull String id, @NotNull String version) {
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        return getKey(symbols.getId(id.toLowerCase(Locale.ENGLISH)), symbols.getId(version));
+    }
+
+    private static long getKey(int idSymbol, int versionSymbol) {
+        // Long.hashCode xors the halves, dense symbol ids would collide, so the packed ids are scrambled
+        // by an odd multiplier which keeps the keys unique
+        return (((long) idSymbol << 32) | versionSymbol) * 0x9E3779B97F4A7C15L;
+    }
+}
@@ -19,45 +19,185 @@ package com.dbeaver.osgi.dependency.processing.p2;
 
 import org.apache.commons.collections4.MultiValuedMap;
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteBundleStore;
 import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
-import com.dbeaver.osgi.dependency.processing.util.Version;
-import org.jkiss.utils.Pair;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
 
+import java.util.AbstractList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Remote bundles are kept as unit ids of the {@link RemoteBundleStore} keyed by symbol ids,
+ * bundle objects are only created for the lookup results.
+ * <p>
+ * Bundles, features and bundle requirements carry the mask of the target environments they apply to,
+ * {@link #forPlatform(int)} gives the view of a single environment.
+ */
 public class P2BundleLookupCache {
-    private final MultiValuedMap<String, RemoteP2BundleInfo> remoteBundlesByNames = new ArrayListValuedHashMap<>();
-    private final MultiValuedMap<String, RemoteP2Feature> remoteFeaturesByNames = new ArrayListValuedHashMap<>();
-    private final MultiValuedMap<String, RemoteP2BundleInfo> remoteBundlesByExports = new ArrayListValuedHashMap<>();
+    private static final int ALL_PLATFORMS = -1;
+
+    private final Map<Integer, IntList> remoteBundlesByNames;
+    private final MultiValuedMap<String, RemoteP2Feature> remoteFeaturesByNames;
+    private final Map<Integer, IntList> remoteBundlesByExports;
+    private final int platforms;
 
     public P2BundleLookupCache() {
+        this(new HashMap<>(), new ArrayListValuedHashMap<>(), new HashMap<>(), ALL_PLATFORMS);
+    }
+
+    private P2BundleLookupCache(
+        Map<Integer, IntList> remoteBundlesByNames,
+        MultiValuedMap<String, RemoteP2Feature> remoteFeaturesByNames,
+        Map<Integer, IntList> remoteBundlesByExports,
+        int platforms
+    ) {
+        this.remoteBundlesByNames = remoteBundlesByNames;
+        this.remoteFeaturesByNames = remoteFeaturesByNames;
+        this.remoteBundlesByExports = remoteBundlesByExports;
+        this.platforms = platforms;
+    }
+
+    /**
+     * View of the bundles and features available on the target environment with the given index,
+     * bundles of the view only have the requirements of this environment.
+     * The view shares the entries with this cache, so it reflects later changes of it.
+     */
+    public P2BundleLookupCache forPlatform(int platformIndex) {
+        return new P2BundleLookupCache(remoteBundlesByNames, remoteFeaturesByNames, remoteBundlesByExports, 1 << platformIndex);
     }
 
     public Collection<RemoteP2BundleInfo> getRemoteBundlesByName(String name) {
-        return remoteBundlesByNames.get(name);
+        return getBundles(remoteBundlesByNames, name);
     }
 
     public RemoteP2BundleInfo getRemoteBundleByNameAndVersion(String name, String version) {
-        return remoteBundlesByExports.get(name).stream().filter(it -> it.getBundleVersion().equals(version)).findFirst()
-            .orElse(null);
+        IntList units = getUnits(remoteBundlesByExports, name);
+        for (int i = 0; i < units.size(); i++) {
+            int unit = units.get(i);
+            if (isAvailable(unit) && RemoteBundleStore.INSTANCE.getBundleVersion(unit).equals(version)) {
+                return RemoteBundleStore.INSTANCE.getBundle(unit, platforms);
+            }
+        }
+        return null;
     }
 
     public Collection<RemoteP2Feature> getRemoteFeaturesByName(String name) {
-        return remoteFeaturesByNames.get(name);
+        Collection<RemoteP2Feature> features = remoteFeaturesByNames.get(name);
+        if (platforms == ALL_PLATFORMS) {
+            return features;
+        }
+        return features.stream().filter(it -> (it.getPlatforms() & platforms) != 0).toList();
     }
 
     public Collection<RemoteP2BundleInfo> getRemoteBundlesByExport(String export) {
-        return remoteBundlesByExports.get(export);
+        return getBundles(remoteBundlesByExports, export);
     }
 
-    public void addRemoteBundle(RemoteP2BundleInfo remoteP2BundleInfo) {
-        remoteBundlesByNames.put(remoteP2BundleInfo.getBundleName(), remoteP2BundleInfo);
-        for (Pair<String, Version> exportPackage : remoteP2BundleInfo.getExportPackages()) {
-            remoteBundlesByExports.put(exportPackage.getFirst(), remoteP2BundleInfo);
+    public void addRemoteBundle(int unit) {
+        add(remoteBundlesByNames, RemoteBundleStore.INSTANCE.getNameId(unit), unit);
+        for (int exportId : RemoteBundleStore.INSTANCE.getExportIds(unit)) {
+            add(remoteBundlesByExports, exportId, unit);
         }
     }
 
     public void addRemoteFeature(RemoteP2Feature feature) {
         remoteFeaturesByNames.put(feature.name, feature);
     }
+
+    public void addAll(P2BundleLookupCache other) {
+        addAll(remoteBundlesByNames, other.remoteBundlesByNames);
+        remoteFeaturesByNames.putAll(other.remoteFeaturesByNames);
+        addAll(remoteBundlesByExports, other.remoteBundlesByExports);
+    }
+
+    /**
+     * Removes all entries, views of this cache become empty as well.
+     */
+    public void clear() {
+        remoteBundlesByNames.clear();
+        remoteFeaturesByNames.clear();
+        remoteBundlesByExports.clear();
+    }
+
+    public void removeRemoteBundle(int unit) {
+        remove(remoteBundlesByNames, RemoteBundleStore.INSTANCE.getNameId(unit), unit);
+        for (int exportId : RemoteBundleStore.INSTANCE.getExportIds(unit)) {
+            remove(remoteBundlesByExports, exportId, unit);
+        }
+    }
+
+    public void removeRemoteFeature(RemoteP2Feature feature) {
+        remoteFeaturesByNames.get(feature.name).removeIf(it -> it == feature);
+    }
+
+    /**
+     * Removes exactly the entries of the other cache, equal bundles of other repositories are kept.
+     */
+    public void removeAll(P2BundleLookupCache other) {
+        for (IntList units : other.remoteBundlesByNames.values()) {
+            for (int i = 0; i < units.size(); i++) {
+                removeRemoteBundle(units.get(i));
+            }
+        }
+        for (RemoteP2Feature feature : other.remoteFeaturesByNames.values()) {
+            removeRemoteFeature(feature);
+        }
+    }
+
+    private boolean isAvailable(int unit) {
+        return platforms == ALL_PLATFORMS || (RemoteBundleStore.INSTANCE.getPlatforms(unit) & platforms) != 0;
+    }
+
+    private static IntList getUnits(Map<Integer, IntList> map, String key) {
+        int id = SymbolTable.INSTANCE.findId(key);
+        IntList units = id == -1 ? null : map.get(id);
+        return units == null ? new IntList(1) : units;
+    }
+
+    private List<RemoteP2BundleInfo> getBundles(Map<Integer, IntList> map, String key) {
+        IntList allUnits = getUnits(map, key);
+        IntList units;
+        if (platforms == ALL_PLATFORMS) {
+            units = allUnits;
+        } else {
+            units = new IntList(allUnits.size());
+            for (int i = 0; i < allUnits.size(); i++) {
+                if (isAvailable(allUnits.get(i))) {
+                    units.add(allUnits.get(i));
+                }
+            }
+        }
+        return new AbstractList<>() {
+            @Override
+            public RemoteP2BundleInfo get(int index) {
+                return RemoteBundleStore.INSTANCE.getBundle(units.get(index), platforms);
+            }
+
+            @Override
+            public int size() {
+                return units.size();
+            }
+        };
+    }
+
+    private static void add(Map<Integer, IntList> map, int key, int unit) {
+        map.computeIfAbsent(key, it -> new IntList(2)).add(unit);
+    }
+
+    private static void addAll(Map<Integer, IntList> map, Map<Integer, IntList> other) {
+        for (Map.Entry<Integer, IntList> entry : other.entrySet()) {
+            map.computeIfAbsent(entry.getKey(), it -> new IntList(entry.getValue().size())).addAll(entry.getValue());
+        }
+    }
+
+    private static void remove(Map<Integer, IntList> map, int key, int unit) {
+        IntList units = map.get(key);
+        if (units != null) {
+            units.removeValue(unit);
+        }
+    }
 }
@@ -16,25 +16,62 @@
  */
 package com.dbeaver.osgi.dependency.processing.p2;
 
+import com.dbeaver.osgi.dependency.processing.ConfigurationConstants;
+import com.dbeaver.osgi.dependency.processing.PathsManager;
+import com.dbeaver.osgi.dependency.processing.p2.repository.ArtifactStore;
+import com.dbeaver.osgi.dependency.processing.p2.repository.DownloadScheduler;
 import com.dbeaver.osgi.dependency.processing.p2.repository.IRepository;
+import com.dbeaver.osgi.dependency.processing.p2.repository.P2Repository;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RepositoryIndexTask;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RepositoryRegistry;
 import com.dbeaver.osgi.dependency.processing.p2.repository.exception.RepositoryInitialisationError;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteBundleStore;
 import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
-import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2Repository;
+import com.dbeaver.osgi.dependency.processing.util.HttpTransport;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
 import com.dbeaver.osgi.dependency.processing.xml.ContentParserXmlExtension;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.CommonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.*;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
 
 public class P2RepositoryManager {
     private static final Logger log = LoggerFactory.getLogger(RemoteP2BundleInfo.class);
 
+    private static final int DEFAULT_INDEXING_PARALLELISM = 8;
+    private static final int DEFAULT_DOWNLOAD_PARALLELISM = 4;
+    private static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_RESPONSE_TIMEOUT_SECONDS = 60;
+
     public static final P2RepositoryManager INSTANCE = new P2RepositoryManager();
     private List<IRepository<?>> rootRepositories;
     private final P2BundleLookupCache cache = new P2BundleLookupCache();
+    private P2BundleLookupCache resolutionCache = cache.forPlatform(0);
+    private List<TargetEnvironment> targetEnvironments = List.of(TargetEnvironment.current());
+    private boolean parallelContentParsing;
+    // Chunked parsing keeps the whole content in memory, so only one repository at a time is parsed this way
+    private final Semaphore contentBuffers = new Semaphore(1);
+    private boolean mirrorsEnabled = true;
+    private ContentParserXmlExtension extension;
+    private int indexingParallelism = DEFAULT_INDEXING_PARALLELISM;
+    private DownloadScheduler downloadScheduler;
+    private ArtifactStore artifactStore = new ArtifactStore(ArtifactStore.getDefaultLocation());
+    // Whether the last initialization completed, a failed one is not refreshed
+    private boolean indexed;
 
     public void init(Properties settings, String eclipseVersion, ContentParserXmlExtension extension) throws RepositoryInitialisationError {
         String repositoriesString = (String) settings.get("repositories");
@@ -42,24 +79,169 @@ public class P2RepositoryManager {
             "${eclipse-version}",
                 eclipseVersion);
         String[] repositories = reposititoryString.split(";");
+        RemoteBundleStore.INSTANCE.setOffHeap(
+            Boolean.parseBoolean(settings.getProperty(ConfigurationConstants.REPOSITORY_OFF_HEAP_STORAGE_PARAM)));
+        List<TargetEnvironment> environments = getTargetEnvironments(settings);
+        // A repeated initialization in the same JVM, e.g. in a Gradle daemon, only re-indexes changed repositories.
+        // Extensions have to see every element and platform masks depend on the environments, these are indexed again.
+        boolean incremental = indexed && extension == null && this.extension == null && environments.equals(targetEnvironments);
+        this.indexed = false;
+        this.targetEnvironments = environments;
+        this.resolutionCache = cache.forPlatform(0);
+        this.parallelContentParsing = "true".equalsIgnoreCase(
+            settings.getProperty(ConfigurationConstants.REPOSITORY_PARALLEL_CONTENT_PARSING_PARAM));
+        this.mirrorsEnabled = !"false".equalsIgnoreCase(settings.getProperty(ConfigurationConstants.REPOSITORY_MIRRORS_PARAM));
+        HttpTransport.INSTANCE.setTimeouts(
+            Duration.ofSeconds(getPositiveInt(settings, ConfigurationConstants.REPOSITORY_CONNECT_TIMEOUT_PARAM, DEFAULT_CONNECT_TIMEOUT_SECONDS)),
+            Duration.ofSeconds(getPositiveInt(settings, ConfigurationConstants.REPOSITORY_RESPONSE_TIMEOUT_PARAM, DEFAULT_RESPONSE_TIMEOUT_SECONDS)));
+        HttpTransport.INSTANCE.setHostParallelism(
+            getPositiveInt(settings, ConfigurationConstants.REPOSITORY_HOST_DOWNLOAD_PARALLELISM_PARAM, HttpTransport.DEFAULT_HOST_PARALLELISM));
+        this.artifactStore = createArtifactStore(settings);
+        synchronized (this) {
+            this.downloadScheduler = new DownloadScheduler(
+                getPositiveInt(settings, ConfigurationConstants.REPOSITORY_DOWNLOAD_PARALLELISM_PARAM, DEFAULT_DOWNLOAD_PARALLELISM));
+        }
+        if (!incremental) {
+            // Repositories are shared by the whole JVM, entries of a previous initialization are dropped
+            cache.clear();
+            RepositoryRegistry.INSTANCE.clear();
+        }
         indexRepositories(repositories);
+        this.extension = extension;
+        this.indexingParallelism = getPositiveInt(settings,
+            ConfigurationConstants.REPOSITORY_INDEXING_PARALLELISM_PARAM, DEFAULT_INDEXING_PARALLELISM);
+        if (incremental) {
+            refresh();
+            this.indexed = true;
+            return;
+        }
+        // Every repository is claimed again by the new pass
+        RepositoryRegistry.INSTANCE.startPass();
+        List<RepositoryIndexTask> tasks = new ArrayList<>();
         for (IRepository<?> repository : rootRepositories) {
             log.info("Indexing " + repository.getName() + " repository...");
-            repository.init(cache, extension);
+            tasks.add(new RepositoryIndexTask(repository, extension));
+        }
+        runIndexing(() -> RepositoryIndexTask.indexAll(tasks, cache));
+        // A child shared by several composites is indexed by whichever task claims it first
+        rebuildCache();
+        this.indexed = true;
+        SymbolTable.INSTANCE.logStatistics();
+        RemoteBundleStore.INSTANCE.logStatistics();
+    }
+
+    /**
+     * Re-indexes only repositories whose metadata changed since the last indexing,
+     * called by a repeated {@link #init} with the same environments.
+     */
+    public void refresh() throws RepositoryInitialisationError {
+        List<RepositoryIndexTask> tasks = new ArrayList<>();
+        for (IRepository<?> repository : rootRepositories) {
+            log.info("Refreshing " + repository.getName() + " repository...");
+            tasks.add(new RepositoryIndexTask(repository, extension, true));
+        }
+        P2BundleLookupCache staleCache = new P2BundleLookupCache();
+        RepositoryRegistry.INSTANCE.startPass();
+        runIndexing(() -> RepositoryIndexTask.refreshAll(tasks, new P2BundleLookupCache(), staleCache));
+        RepositoryRegistry.INSTANCE.sweep(staleCache);
+        // Units of the replaced metadata would accumulate in a long-lived process
+        RepositoryRegistry.INSTANCE.compactBundleStore();
+        // Appending the re-indexed entries would move them behind the unchanged ones, the unit ids changed as well
+        rebuildCache();
+        SymbolTable.INSTANCE.logStatistics();
+        RemoteBundleStore.INSTANCE.logStatistics();
+    }
+
+    /**
+     * Fills the cache in the declaration order of the repositories, the first repository declaring a bundle wins lookups.
+     */
+    private void rebuildCache() {
+        cache.clear();
+        Set<IRepository<?>> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (IRepository<?> repository : rootRepositories) {
+            repository.addEntries(cache, visited);
+        }
+    }
+
+    private void runIndexing(IndexingAction action) throws RepositoryInitialisationError {
+        ForkJoinPool indexingPool = new ForkJoinPool(indexingParallelism);
+        try {
+            RepositoryInitialisationError error = indexingPool.invoke(ForkJoinTask.adapt(() -> {
+                try {
+                    action.run();
+                    return null;
+                } catch (RepositoryInitialisationError e) {
+                    return e;
+                }
+            }));
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            indexingPool.shutdown();
         }
     }
 
+    private static List<TargetEnvironment> getTargetEnvironments(Properties settings) {
+        String environmentsString = settings.getProperty(ConfigurationConstants.TARGET_ENVIRONMENTS_PARAM);
+        if (CommonUtils.isEmpty(environmentsString)) {
+            return List.of(TargetEnvironment.current());
+        }
+        List<TargetEnvironment> environments = new ArrayList<>();
+        for (String environmentString : environmentsString.split("[;,]")) {
+            if (environmentString.isBlank()) {
+                continue;
+            }
+            try {
+                TargetEnvironment environment = TargetEnvironment.fromString(environmentString);
+                if (environments.contains(environment)) {
+                    continue;
+                }
+                if (environments.size() == Integer.SIZE) {
+                    log.warn("Only " + Integer.SIZE + " target environments are supported, " + environment + " is ignored");
+                    continue;
+                }
+                environments.add(environment);
+            } catch (IllegalArgumentException e) {
+                log.warn(e.getMessage());
+            }
+        }
+        return environments.isEmpty() ? List.of(TargetEnvironment.current()) : List.copyOf(environments);
+    }
+
+    /**
+     * The store is shared by default, a path setting moves it and "false" disables it.
+     */
+    private static ArtifactStore createArtifactStore(Properties settings) {
+        String location = settings.getProperty(ConfigurationConstants.REPOSITORY_ARTIFACT_STORE_PARAM);
+        if (location == null || location.isBlank()) {
+            return new ArtifactStore(ArtifactStore.getDefaultLocation());
+        }
+        if ("false".equalsIgnoreCase(location.trim())) {
+            return null;
+        }
+        return new ArtifactStore(Path.of(location.trim()));
+    }
+
+    private static int getPositiveInt(Properties settings, String param, int defaultValue) {
+        String value = settings.getProperty(param);
+        if (value != null) {
+            try {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid " + param + " value '" + value + "', default will be used");
+            }
+        }
+        return defaultValue;
+    }
+
     private void indexRepositories(String[] repositories) throws RepositoryInitialisationError {
         List<IRepository<?>> list =  new ArrayList<>();
         try {
             for (String s : repositories) {
-                String trim = s.trim();
-                URI uri = new URI(trim);
-                try {
-                    URL url = uri.toURL();
-                    list.add(new RemoteP2Repository(url));
-                } catch (MalformedURLException e) {
-                    throw new UnsupportedOperationException("Local p2 repositories are not supported");
+                P2Repository repository = createRepository(s.trim());
+                if (!list.contains(repository)) {
+                    list.add(repository);
                 }
             }
         } catch (Exception error) {
@@ -68,11 +250,124 @@ public class P2RepositoryManager {
         rootRepositories = list;
     }
 
+    /**
+     * Repositories without URL scheme are local directories, relative paths are resolved against the projects folder.
+     */
+    private static P2Repository createRepository(String location) throws MalformedURLException {
+        URI uri = null;
+        try {
+            uri = new URI(location);
+        } catch (URISyntaxException ignore) {
+            // Windows paths are not valid URIs
+        }
+        // Single letter scheme is a Windows drive
+        if (uri != null && uri.getScheme() != null && uri.getScheme().length() > 1) {
+            return P2Repository.forLocation(uri);
+        }
+        Path path = Path.of(location);
+        if (!path.isAbsolute() && PathsManager.INSTANCE.getProjectsFolderPath() != null) {
+            path = PathsManager.INSTANCE.getProjectsFolderPath().resolve(path);
+        }
+        return P2Repository.forLocation(path.toUri());
+    }
+
+    /**
+     * Bundles available on the resolution environment, the resolvers read the repositories through this view.
+     */
     public P2BundleLookupCache getLookupCache() {
-        return cache;
+        return resolutionCache;
+    }
+
+    /**
+     * Selects the target environment the resolvers resolve bundles for, the first configured one by default.
+     * Bundles, features and requirements of other environments are not visible to them.
+     */
+    public void setResolutionEnvironment(TargetEnvironment environment) {
+        this.resolutionCache = getLookupCache(environment);
+    }
+
+    /**
+     * Bundles available on the target environment, it has to be one of the configured ones.
+     */
+    public P2BundleLookupCache getLookupCache(TargetEnvironment environment) {
+        int index = targetEnvironments.indexOf(environment);
+        if (index < 0) {
+            throw new IllegalArgumentException("Target environment " + environment + " is not configured");
+        }
+        return cache.forPlatform(index);
+    }
+
+    /**
+     * Whether large content files are split and parsed in parallel, disabled by default.
+     */
+    public boolean isParallelContentParsing() {
+        return parallelContentParsing;
+    }
+
+    /**
+     * Claims the memory for a content file parsed in chunks, the claim is returned by {@link #releaseContentBuffer()}.
+     *
+     * @return false if another repository holds it, the content should be streamed then
+     */
+    public boolean tryAcquireContentBuffer() {
+        return contentBuffers.tryAcquire();
+    }
+
+    public void releaseContentBuffer() {
+        contentBuffers.release();
+    }
+
+    /**
+     * Scheduler of remote artifact downloads, created with the default parallelism if the manager is not initialized.
+     */
+    public synchronized DownloadScheduler getDownloadScheduler() {
+        if (downloadScheduler == null) {
+            downloadScheduler = new DownloadScheduler(DEFAULT_DOWNLOAD_PARALLELISM);
+        }
+        return downloadScheduler;
+    }
+
+    /**
+     * Waits until all requested bundle downloads are finished, call it before the downloaded files are used.
+     * The resolvers only schedule downloads, only {@code DynamicImportsResolver.start} waits for them.
+     *
+     * @return false if some of the downloads the result needs failed
+     */
+    public boolean awaitDownloads() {
+        int failedDownloads = getDownloadScheduler().awaitAll();
+        if (failedDownloads > 0) {
+            log.error(failedDownloads + " bundle downloads failed");
+        }
+        return failedDownloads == 0;
+    }
+
+    /**
+     * Whether artifacts are downloaded from the mirrors repositories publish, enabled by default.
+     */
+    public boolean isMirrorsEnabled() {
+        return mirrorsEnabled;
+    }
+
+    /**
+     * Store of artifacts shared by the workspaces, null if it is disabled.
+     */
+    @Nullable
+    public ArtifactStore getArtifactStore() {
+        return artifactStore;
+    }
+
+    /**
+     * Environments the repositories are indexed for, bit indexes of bundle platform masks refer to this list.
+     */
+    public List<TargetEnvironment> getTargetEnvironments() {
+        return targetEnvironments;
     }
 
     private P2RepositoryManager() {
 
     }
+
+    private interface IndexingAction {
+        void run() throws RepositoryInitialisationError;
+    }
 }
@@ -16,55 +16,78 @@
  */
 package com.dbeaver.osgi.dependency.processing.p2;
 
+import com.dbeaver.osgi.dependency.processing.p2.repository.DownloadScheduler;
+import com.dbeaver.osgi.dependency.processing.p2.repository.P2Repository;
 import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
-import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 
 public class RemoteP2Feature {
     private static final Logger log = LoggerFactory.getLogger(RemoteP2BundleInfo.class);
 
-    RemoteP2Repository repository;
+    P2Repository repository;
     String name;
     String version;
-    private Path path;
-    private final Lock lock = new ReentrantLock();
+    // Bits of the target environments the feature is available on
+    private final int platforms;
+    // Single flight of the feature resolution, completed with null if it failed
+    private volatile CompletableFuture<Path> resolution;
 
 
-    public RemoteP2Feature(String name, String version, RemoteP2Repository repository) {
+    public RemoteP2Feature(String name, String version, P2Repository repository) {
+        this(name, version, repository, -1);
+    }
+
+    public RemoteP2Feature(String name, String version, P2Repository repository, int platforms) {
         this.repository = repository;
         this.name = name;
         this.version = version;
+        this.platforms = platforms;
     }
 
+    /**
+     * Resolves the feature once, concurrent callers wait for the same resolution.
+     * A failed resolution is retried by the next call.
+     */
     public boolean resolveFeature() {
-        while (!lock.tryLock()) {
-            // Already resolving by another thread
-            Thread.onSpinWait();
+        CompletableFuture<Path> currentResolution;
+        boolean owner = false;
+        synchronized (this) {
+            currentResolution = resolution;
+            if (currentResolution == null) {
+                currentResolution = new CompletableFuture<>();
+                resolution = currentResolution;
+                owner = true;
+            }
         }
-        try {
-            if (isDownloaded()) return true;
-            log.info("Downloading " + getName() + "_" + getVersion() + " from " + getRepository().getName() + "... ");
-            Path filePath = repository.resolveFeature(this);
-            if (filePath == null) {
-                return false;
+        if (owner) {
+            Path filePath = null;
+            try {
+                // Features go through the scheduler to share the download slots with the bundles
+                filePath = P2RepositoryManager.INSTANCE.getDownloadScheduler().submit(
+                    getName() + "_" + getVersion(),
+                    DownloadScheduler.Priority.FEATURE,
+                    () -> {
+                        log.info("Downloading " + getName() + "_" + getVersion() + " from " + getRepository().getName() + "... ");
+                        return repository.resolveFeature(this);
+                    }
+                ).join();
+            } finally {
+                if (filePath == null) {
+                    synchronized (this) {
+                        resolution = null;
+                    }
+                }
+                currentResolution.complete(filePath);
             }
-            this.path = filePath;
-            return true;
-        } finally {
-            lock.unlock();
         }
+        return currentResolution.join() != null;
     }
 
-    private boolean isDownloaded() {
-        return path != null;
-    }
-
-    public RemoteP2Repository getRepository() {
+    public P2Repository getRepository() {
         return repository;
     }
 
@@ -76,15 +99,15 @@ public class RemoteP2Feature {
         return version;
     }
 
+    public int getPlatforms() {
+        return platforms;
+    }
+
+    /**
+     * @return feature folder or null if the feature is not resolved, waits for a resolution in progress
+     */
     public Path getPath() {
-        while (!lock.tryLock()) {
-            // Already resolving by another thread
-            Thread.onSpinWait();
-        }
-        try {
-            return path;
-        } finally {
-            lock.unlock();
-        }
+        CompletableFuture<Path> currentResolution = resolution;
+        return currentResolution == null ? null : currentResolution.join();
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.BundleInfo;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Artifact jars shared by all workspaces of the user.
+ * <p>
+ * Entries are addressed by the artifact folder, file name and published checksum:
+ * {@code <store>/plugins/<id>_<version>/<algorithm>-<digest>/<id>_<version>.jar}.
+ * An entry is written once after its checksum was verified and is linked or extracted into the workspaces.
+ * Several processes may populate the store, an entry is downloaded under a file lock.
+ */
+public class ArtifactStore {
+    private static final Logger log = LoggerFactory.getLogger(ArtifactStore.class);
+
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final Pattern HEX_DIGEST = Pattern.compile("[0-9a-fA-F]+");
+
+    private final Path root;
+    // Entries verified by this process are not hashed again
+    private final Set<Path> verifiedEntries = ConcurrentHashMap.newKeySet();
+
+    public ArtifactStore(@NotNull Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    /**
+     * @return {@code dbeaver-osgi/artifacts} in the cache directory of the user
+     */
+    @NotNull
+    public static Path getDefaultLocation() {
+        String home = System.getProperty("user.home");
+        Path cacheFolder;
+        if ("win32".equals(BundleInfo.currentOS)) {
+            String localAppData = System.getenv("LOCALAPPDATA");
+            cacheFolder = localAppData == null || localAppData.isBlank() ? Path.of(home, "AppData", "Local") : Path.of(localAppData);
+        } else if ("macosx".equals(BundleInfo.currentOS)) {
+            cacheFolder = Path.of(home, "Library", "Caches");
+        } else {
+            String cacheHome = System.getenv("XDG_CACHE_HOME");
+            cacheFolder = cacheHome == null || cacheHome.isBlank() ? Path.of(home, ".cache") : Path.of(cacheHome);
+        }
+        return cacheFolder.resolve("dbeaver-osgi").resolve("artifacts");
+    }
+
+    @NotNull
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the stored artifact, downloading it into the store if it is absent or corrupted.
+     *
+     * @param artifactPath artifact path in the repository, e.g. {@code plugins/<id>_<version>.jar}
+     * @param download     downloads and verifies the artifact into the given file
+     * @return stored artifact or null if it cannot be downloaded
+     */
+    @Nullable
+    Path obtain(
+        @NotNull String artifactPath,
+        @NotNull ArtifactChecksum checksum,
+        @NotNull Download download
+    ) throws IOException, URISyntaxException {
+        Path entry = getEntryPath(artifactPath, checksum);
+        if (verifiedEntries.contains(entry)) {
+            return entry;
+        }
+        // File locks are held by the process, threads of this process are excluded by the target guard
+        try (FileUtils.TargetLock ignoredGuard = FileUtils.lockTarget(entry)) {
+            if (verifiedEntries.contains(entry)) {
+                return entry;
+            }
+            Files.createDirectories(entry.getParent());
+            try (FileChannel channel = FileChannel.open(entry.resolveSibling(entry.getFileName() + LOCK_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = channel.lock()) {
+                if (Files.isRegularFile(entry)) {
+                    if (checksum.matches(entry)) {
+                        verifiedEntries.add(entry);
+                        return entry;
+                    }
+                    log.warn("Stored " + entry.getFileName() + " is corrupted, it will be downloaded again");
+                    Files.delete(entry);
+                }
+                Path downloaded = download.download(entry);
+                if (downloaded != null) {
+                    verifiedEntries.add(entry);
+                }
+                return downloaded;
+            }
+        }
+    }
+
+    @NotNull
+    private Path getEntryPath(@NotNull String artifactPath, @NotNull ArtifactChecksum checksum) throws IOException {
+        Path artifact = root.resolve(artifactPath).normalize();
+        if (!artifact.startsWith(root) || !HEX_DIGEST.matcher(checksum.value()).matches()) {
+            throw new IOException("Artifact " + artifactPath + " (" + checksum + ") can't be stored");
+        }
+        String fileName = artifact.getFileName().toString();
+        String entryName = fileName.endsWith(".jar") ? fileName.substring(0, fileName.length() - ".jar".length()) : fileName;
+        String digestFolder = checksum.algorithm().toLowerCase(Locale.ENGLISH) + "-" + checksum.value().toLowerCase(Locale.ENGLISH);
+        return artifact.resolveSibling(entryName).resolve(digestFolder).resolve(fileName);
+    }
+
+    @FunctionalInterface
+    interface Download {
+        /**
+         * @return the file or null if the artifact cannot be downloaded
+         */
+        @Nullable
+        Path download(@NotNull Path file) throws IOException, URISyntaxException;
+    }
+}
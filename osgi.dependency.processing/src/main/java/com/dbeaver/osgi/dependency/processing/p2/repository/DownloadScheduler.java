@@ -0,0 +1,236 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import org.jkiss.code.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs artifact downloads in the background, so the resolver continues from metadata while the jars are transferred.
+ * <p>
+ * Queued downloads start in the order of their priority, at most {@code parallelism} at once.
+ * Transfers from one host are limited by {@link com.dbeaver.osgi.dependency.processing.util.HttpTransport},
+ * which sees the host of every mirror.
+ * <p>
+ * Failed {@link Priority#PREFETCH} and {@link Priority#SOURCE} downloads are only logged,
+ * the other ones are needed by the result and counted as failures.
+ * <p>
+ * Download tasks must not wait for other downloads, they would take a running slot from them.
+ */
+public class DownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(DownloadScheduler.class);
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Order in which queued downloads are started, from the most urgent.
+     */
+    public enum Priority {
+        // The resolver waits for the artifact
+        BLOCKING,
+        FEATURE,
+        // The result uses the artifact, the resolver continues from metadata
+        REQUIRED,
+        // Requested ahead of use
+        PREFETCH,
+        SOURCE
+    }
+
+    private final int parallelism;
+    private final Set<CompletableFuture<?>> pendingDownloads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger failedDownloads = new AtomicInteger();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    private final ExecutorService executor;
+
+    // Guarded by this
+    private final TreeSet<Task<?>> queue = new TreeSet<>(
+        Comparator.comparing((Task<?> task) -> task.priority).thenComparingLong(task -> task.sequence));
+    // Queued and running tasks
+    private final Map<CompletableFuture<?>, Task<?>> tasks = new IdentityHashMap<>();
+    private int running;
+    private long sequence;
+
+    public DownloadScheduler(int parallelism) {
+        this.parallelism = parallelism;
+        // Concurrency is bounded by the dispatching, the pool only provides threads
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            IDLE_THREAD_TIMEOUT_SECONDS,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "p2-download-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        this.executor = executor;
+    }
+
+    /**
+     * @return future completed with the download result, a download which threw is completed with null
+     */
+    @NotNull
+    public <T> CompletableFuture<T> submit(
+        @NotNull String artifactName,
+        @NotNull Priority priority,
+        @NotNull Supplier<T> download
+    ) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pendingDownloads.add(future);
+        future.whenComplete((result, e) -> pendingDownloads.remove(future));
+        synchronized (this) {
+            Task<T> task = new Task<>(artifactName, priority, sequence++, download, future);
+            queue.add(task);
+            tasks.put(future, task);
+            dispatch();
+        }
+        return future;
+    }
+
+    /**
+     * Moves a queued download ahead, e.g. when a prefetched bundle turns out to be needed right away.
+     * A running download keeps its slot, but its failure is counted by the new priority.
+     */
+    public synchronized void escalate(@NotNull CompletableFuture<?> download, @NotNull Priority priority) {
+        Task<?> task = tasks.get(download);
+        if (task != null && priority.compareTo(task.priority) < 0) {
+            boolean queued = queue.remove(task);
+            task.priority = priority;
+            if (queued) {
+                queue.add(task);
+            }
+        }
+    }
+
+    /**
+     * @return number of downloads waiting to be started
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of queued downloads of each priority
+     */
+    @NotNull
+    public synchronized Map<Priority, Integer> getQueueDepthByPriority() {
+        Map<Priority, Integer> depth = new EnumMap<>(Priority.class);
+        for (Task<?> task : queue) {
+            depth.merge(task.priority, 1, Integer::sum);
+        }
+        return depth;
+    }
+
+    public synchronized int getRunningDownloads() {
+        return running;
+    }
+
+    /**
+     * Waits for all scheduled downloads including the ones scheduled while waiting.
+     *
+     * @return number of required downloads failed since the previous call, i.e. completed with false or with an error
+     */
+    public int awaitAll() {
+        while (!pendingDownloads.isEmpty()) {
+            log.debug("Waiting for " + pendingDownloads.size() + " downloads, queued: " + getQueueDepthByPriority());
+            List<CompletableFuture<?>> downloads = new ArrayList<>(pendingDownloads);
+            CompletableFuture.allOf(downloads.toArray(CompletableFuture[]::new)).join();
+            pendingDownloads.removeAll(downloads);
+        }
+        return failedDownloads.getAndSet(0);
+    }
+
+    /**
+     * Starts queued downloads while there are free slots, must be called holding the lock.
+     */
+    private void dispatch() {
+        while (running < parallelism && !queue.isEmpty()) {
+            Task<?> task = queue.pollFirst();
+            running++;
+            executor.execute(() -> run(task));
+        }
+    }
+
+    private <T> void run(@NotNull Task<T> task) {
+        T result = null;
+        boolean failed = true;
+        try {
+            result = task.download.get();
+            failed = Boolean.FALSE.equals(result);
+        } catch (Throwable e) {
+            log.warn("Error downloading " + task.artifactName, e);
+        }
+        Priority priority;
+        synchronized (this) {
+            tasks.remove(task.future);
+            priority = task.priority;
+            running--;
+            dispatch();
+        }
+        if (failed) {
+            if (priority.compareTo(Priority.REQUIRED) <= 0) {
+                failedDownloads.incrementAndGet();
+            } else {
+                log.warn("Failed to download " + task.artifactName + " requested with priority " + priority);
+            }
+        }
+        task.future.complete(result);
+    }
+
+    private static final class Task<T> {
+        private final String artifactName;
+        private final long sequence;
+        private final Supplier<T> download;
+        private final CompletableFuture<T> future;
+        private Priority priority;
+
+        private Task(
+            @NotNull String artifactName,
+            @NotNull Priority priority,
+            long sequence,
+            @NotNull Supplier<T> download,
+            @NotNull CompletableFuture<T> future
+        ) {
+            this.artifactName = artifactName;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.download = download;
+            this.future = future;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.dbeaver.osgi.dependency.processing.p2.repository.exception.Repository
 import com.dbeaver.osgi.dependency.processing.xml.ContentParserXmlExtension;
 
 import java.nio.file.Path;
+import java.util.Set;
 
 public interface IRepository<BUNDLE extends BundleInfo> {
     String getName();
@@ -31,4 +32,22 @@ public interface IRepository<BUNDLE extends BundleInfo> {
 
     void init(P2BundleLookupCache cache, ContentParserXmlExtension extension) throws RepositoryInitialisationError;
 
+    /**
+     * Re-indexes the parts of the repository changed since the last indexing.
+     *
+     * @param cache receives the new entries
+     * @param staleCache receives the replaced entries, they have to be removed from the lookup cache
+     */
+    void refresh(
+        P2BundleLookupCache cache,
+        P2BundleLookupCache staleCache,
+        ContentParserXmlExtension extension
+    ) throws RepositoryInitialisationError;
+
+    /**
+     * Adds the indexed entries of the repository and its sub-repositories to the cache in declaration order.
+     * Repositories in the visited set are skipped, the first parent declaring a shared repository adds it.
+     */
+    void addEntries(P2BundleLookupCache target, Set<IRepository<?>> visited);
+
 }
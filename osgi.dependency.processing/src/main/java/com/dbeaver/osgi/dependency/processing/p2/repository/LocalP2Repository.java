@@ -0,0 +1,143 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.PathsManager;
+import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import com.dbeaver.osgi.dependency.processing.util.VerifiedArtifacts;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * p2 repository stored in a local directory.
+ * <p>
+ * Metadata is read in place through memory mapping and artifacts are hard linked into the workspace,
+ * nothing is copied unless the workspace is on another file system.
+ */
+public class LocalP2Repository extends P2Repository {
+    private static final Logger log = LoggerFactory.getLogger(LocalP2Repository.class);
+
+    private final Path root;
+    // Holds the index snapshot only, metadata files are never copied
+    private final RepositoryCache indexCache;
+
+    public LocalP2Repository(@NotNull Path root) throws MalformedURLException {
+        this.root = root.toAbsolutePath().normalize();
+        this.indexCache = new RepositoryCache(this.root.toUri().toURL());
+    }
+
+    @NotNull
+    @Override
+    public URI getLocation() {
+        return root.toUri();
+    }
+
+    @NotNull
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public Path resolveBundle(RemoteP2BundleInfo remoteP2BundleInfo) {
+        try {
+            Path eclipsePluginsPath = PathsManager.INSTANCE.getEclipsePluginsPath();
+            String pluginFilename = remoteP2BundleInfo.getBundleName() + "_" + remoteP2BundleInfo.getBundleVersion();
+            Path jarPath = root.resolve(PLUGINS_FOLDER).resolve(pluginFilename + ".jar");
+            if (!Files.isRegularFile(jarPath)) {
+                return null;
+            }
+            ArtifactChecksum checksum = remoteP2BundleInfo.getChecksum();
+            if (checksum != null && !checksum.matches(jarPath)) {
+                log.error(jarPath + " does not match its " + checksum.algorithm() + " checksum");
+                return null;
+            }
+            Path file;
+            if (remoteP2BundleInfo.isZipped()) {
+                file = eclipsePluginsPath.resolve(pluginFilename);
+                if (!FileUtils.extractJarToFolder(jarPath, file)) {
+                    return null;
+                }
+            } else {
+                file = FileUtils.linkOrCopy(jarPath, eclipsePluginsPath.resolve(pluginFilename + ".jar"));
+            }
+            if (checksum != null) {
+                VerifiedArtifacts.record(file, checksum);
+            }
+            return file;
+        } catch (IOException e) {
+            log.error("Error resolving the artifact", e);
+            return null;
+        }
+    }
+
+    @Override
+    public Path resolveFeature(RemoteP2Feature remoteP2Feature) {
+        try {
+            Path eclipseFeaturesPath = PathsManager.INSTANCE.getEclipseFeaturesPath();
+            String featureName = remoteP2Feature.getName() + "_" + remoteP2Feature.getVersion();
+            Path jarPath = root.resolve(FEATURES_FOLDER).resolve(featureName + ".jar");
+            Path filePath = eclipseFeaturesPath.resolve(featureName);
+            FileUtils.extractJarToFolder(jarPath, filePath);
+            return filePath;
+        } catch (IOException e) {
+            log.error("Error resolving the artifact", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    protected Path fetchMetadataFile(@NotNull String filename) {
+        Path file = root.resolve(filename);
+        return Files.isRegularFile(file) ? file : null;
+    }
+
+    /**
+     * Size and modification time are enough to notice a re-mirrored file and don't require reading it.
+     */
+    @NotNull
+    @Override
+    protected String getMetadataChecksum(@NotNull String filename) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(root.resolve(filename), BasicFileAttributes.class);
+        return attributes.size() + "-" + attributes.lastModifiedTime().toMillis();
+    }
+
+    @NotNull
+    @Override
+    protected Path getIndexSnapshotPath() {
+        return indexCache.getCacheFilePath(INDEX_SNAPSHOT_FILE);
+    }
+
+    @NotNull
+    @Override
+    protected InputStream openMetadataFile(@NotNull Path path, @NotNull String xmlEntryName) throws IOException {
+        return FileUtils.openMetadataFile(path, xmlEntryName, true);
+    }
+}
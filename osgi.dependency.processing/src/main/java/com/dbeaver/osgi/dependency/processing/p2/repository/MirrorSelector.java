@@ -0,0 +1,245 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.util.HttpTransport;
+import com.dbeaver.osgi.dependency.processing.xml.IndexFileParser;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Download locations of a repository that publishes {@code p2.mirrorsURL}.
+ * <p>
+ * The mirror list is probed once per session: every mirror downloads the beginning of the artifacts metadata,
+ * mirrors are ranked by the time a typical bundle would take with the measured latency and throughput.
+ * Mirrors failing the probe, or a later download of an artifact another location has, are dropped.
+ * The origin is always the last location.
+ */
+class MirrorSelector {
+    private static final Logger log = LoggerFactory.getLogger(MirrorSelector.class);
+
+    // The list is sorted by the server with the closest mirrors first
+    private static final int MAX_PROBED_MIRRORS = 8;
+    private static final int PROBE_BYTES = 256 * 1024;
+    private static final long REFERENCE_ARTIFACT_SIZE = 1024 * 1024;
+    private static final long RESPONSE_TIMEOUT_MILLIS = 10_000;
+    private static final long PROBE_TIMEOUT_MILLIS = 20_000;
+
+    private final URI origin;
+    private final String mirrorsURL;
+    private final String probeFile;
+    private volatile List<URI> mirrors;
+
+    MirrorSelector(@NotNull URI origin, @NotNull String mirrorsURL, @NotNull String probeFile) {
+        this.origin = origin;
+        this.mirrorsURL = mirrorsURL;
+        this.probeFile = probeFile;
+    }
+
+    /**
+     * @return healthy mirrors from the fastest one, followed by the origin
+     */
+    @NotNull
+    List<URI> getLocations() {
+        List<URI> locations = new ArrayList<>(getMirrors());
+        locations.add(origin);
+        return locations;
+    }
+
+    /**
+     * Excludes the mirror from the following downloads, failures of the origin are ignored.
+     */
+    void reportFailure(@NotNull URI location) {
+        List<URI> currentMirrors = mirrors;
+        if (currentMirrors != null && currentMirrors.remove(location)) {
+            log.warn("Mirror " + location + " failed, it will not be used anymore");
+        }
+    }
+
+    boolean isOrigin(@NotNull URI location) {
+        return origin.equals(location);
+    }
+
+    @NotNull
+    private List<URI> getMirrors() {
+        List<URI> currentMirrors = mirrors;
+        if (currentMirrors == null) {
+            synchronized (this) {
+                currentMirrors = mirrors;
+                if (currentMirrors == null) {
+                    currentMirrors = new CopyOnWriteArrayList<>(probeMirrors());
+                    mirrors = currentMirrors;
+                }
+            }
+        }
+        return currentMirrors;
+    }
+
+    @NotNull
+    private List<URI> probeMirrors() {
+        List<URI> candidates;
+        try {
+            candidates = readMirrorList();
+        } catch (Exception e) {
+            log.warn("Cannot read mirror list of " + origin + ", artifacts will be downloaded from the origin", e);
+            return List.of();
+        }
+        if (candidates.isEmpty()) {
+            return List.of();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), runnable -> {
+            Thread thread = new Thread(runnable, "p2-mirror-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<ProbeResult> results = new ArrayList<>();
+        try {
+            List<Future<ProbeResult>> futures = new ArrayList<>();
+            for (URI candidate : candidates) {
+                futures.add(executor.submit(() -> probe(candidate)));
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+            for (Future<ProbeResult> future : futures) {
+                try {
+                    ProbeResult result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (result != null) {
+                        results.add(result);
+                    }
+                } catch (ExecutionException | TimeoutException e) {
+                    future.cancel(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        results.sort(Comparator.comparingDouble(ProbeResult::getEstimatedMillis));
+        List<URI> ranked = new ArrayList<>(results.size());
+        for (ProbeResult result : results) {
+            log.debug("Mirror " + result.mirror + ": latency " + result.latencyMillis + " ms, " + (long) result.getBytesPerSecond() / 1024 + " KB/s");
+            ranked.add(result.mirror);
+        }
+        if (ranked.isEmpty()) {
+            log.info("No healthy mirrors of " + origin + ", artifacts will be downloaded from the origin");
+        } else {
+            log.info("Artifacts of " + origin + " will be downloaded from " + ranked.get(0) +
+                " (" + ranked.size() + " of " + candidates.size() + " mirrors are healthy)");
+        }
+        return ranked;
+    }
+
+    @NotNull
+    private List<URI> readMirrorList() throws IOException, XMLStreamException {
+        HttpResponse<InputStream> response = HttpTransport.INSTANCE.get(URI.create(mirrorsURL));
+        if (response == null) {
+            return List.of();
+        }
+        List<String> urls;
+        try (InputStream inputStream = response.body()) {
+            urls = IndexFileParser.INSTANCE.listMirrors(inputStream);
+        }
+        List<URI> candidates = new ArrayList<>();
+        for (String url : urls) {
+            try {
+                URI mirror = new URI(url.endsWith("/") ? url : url + "/");
+                if (!mirror.equals(origin) && !candidates.contains(mirror)) {
+                    candidates.add(mirror);
+                }
+            } catch (URISyntaxException e) {
+                log.debug("Invalid mirror URL '" + url + "' is skipped");
+            }
+            if (candidates.size() == MAX_PROBED_MIRRORS) {
+                break;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return null if the mirror does not serve the repository
+     */
+    @Nullable
+    private ProbeResult probe(@NotNull URI mirror) {
+        URI probeURI = mirror.resolve(probeFile);
+        try {
+            long start = System.nanoTime();
+            HttpRequest request = HttpTransport.INSTANCE.newRequest(probeURI)
+                .timeout(Duration.ofMillis(RESPONSE_TIMEOUT_MILLIS))
+                .build();
+            // Probes measure the transfer speed, so they share the host limit of the downloads
+            HttpResponse<InputStream> response = HttpTransport.INSTANCE.sendTransfer(request);
+            long firstByte = System.nanoTime();
+            long bytes = 0;
+            try (InputStream inputStream = response.body()) {
+                if (response.statusCode() != HttpTransport.HTTP_OK) {
+                    return null;
+                }
+                byte[] buffer = new byte[16 * 1024];
+                int read;
+                while (bytes < PROBE_BYTES && (read = inputStream.read(buffer)) != -1) {
+                    bytes += read;
+                }
+            }
+            long end = System.nanoTime();
+            if (bytes == 0) {
+                return null;
+            }
+            return new ProbeResult(
+                mirror,
+                TimeUnit.NANOSECONDS.toMillis(firstByte - start),
+                bytes,
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - firstByte))
+            );
+        } catch (IOException e) {
+            log.debug("Mirror " + mirror + " is not available", e);
+            return null;
+        }
+    }
+
+    private record ProbeResult(@NotNull URI mirror, long latencyMillis, long bytes, long transferMillis) {
+        private double getBytesPerSecond() {
+            return bytes * 1000.0 / transferMillis;
+        }
+
+        private double getEstimatedMillis() {
+            return latencyMillis + REFERENCE_ARTIFACT_SIZE * 1000.0 / getBytesPerSecond();
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.p2.ArtifactIndex;
+import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.P2RepositoryManager;
+import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
+import com.dbeaver.osgi.dependency.processing.p2.repository.exception.RepositoryInitialisationError;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
+import com.dbeaver.osgi.dependency.processing.xml.ContentFileHandler;
+import com.dbeaver.osgi.dependency.processing.xml.ContentParserXmlExtension;
+import com.dbeaver.osgi.dependency.processing.xml.IndexFileParser;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base of p2 repositories, knows the repository layout and how to index it.
+ * Implementations define where the metadata and artifacts are taken from.
+ */
+public abstract class P2Repository implements IRepository<RemoteP2BundleInfo> {
+    private static final Logger log = LoggerFactory.getLogger(P2Repository.class);
+
+    public static final String BUNDLE_CLASSIFIER = "osgi.bundle";
+    public static final String FEATURE_CLASSIFIER = "org.eclipse.update.feature";
+    protected static final String INDEX_SNAPSHOT_FILE = "index.bin";
+    protected static final String PLUGINS_FOLDER = "plugins/";
+    protected static final String FEATURES_FOLDER = "features/";
+    private static final String P2_INDEX_FILE = "p2.index";
+    private static final String ARTIFACT_ORDER_PROPERTY = "artifact.repository.factory.order";
+    private static final String METADATA_ORDER_PROPERTY = "metadata.repository.factory.order";
+    private static final String COMPOSITE_ARTIFACTS_XML = "compositeArtifacts.xml";
+    private static final String ARTIFACTS_XML = "artifacts.xml";
+    private static final String CONTENT_XML = "content.xml";
+    // Used when the repository has no p2.index, xz-compressed metadata is preferred as the smallest one
+    private static final List<String> DEFAULT_ARTIFACT_ORDER = List.of(COMPOSITE_ARTIFACTS_XML, ARTIFACTS_XML + ".xz", ARTIFACTS_XML);
+    private static final List<String> DEFAULT_METADATA_ORDER = List.of(CONTENT_XML + ".xz", CONTENT_XML);
+
+    private final Map<URI, P2Repository> subRepositories = new LinkedHashMap<>();
+    // Last indexing pass the repository was reached in, see RepositoryRegistry
+    private final AtomicInteger visitedPass = new AtomicInteger(-1);
+
+    private final IntList remoteBundleUnits = new IntList();
+    private final Set<RemoteP2Feature> remoteP2FeatureSet = new LinkedHashSet<>();
+
+    // Loaded on demand when the content index comes from a snapshot
+    private volatile ArtifactIndex indexedArtifacts;
+    // Artifacts metadata of the last indexing, repository properties are read from it on demand
+    private volatile MetadataFile artifactsMetadata;
+    // Fingerprint of the metadata the repository content was indexed from
+    private String indexFingerprint;
+
+    /**
+     * Returns the session repository for the location, file URIs are served by {@link LocalP2Repository}.
+     */
+    @NotNull
+    public static P2Repository forLocation(@NotNull URI location) throws MalformedURLException {
+        return RepositoryRegistry.INSTANCE.getRepository(location);
+    }
+
+    @NotNull
+    public abstract URI getLocation();
+
+    /**
+     * @return local path of the metadata file or null if the repository does not have it
+     */
+    @Nullable
+    protected abstract Path fetchMetadataFile(@NotNull String filename) throws IOException, URISyntaxException;
+
+    /**
+     * @return fingerprint of the metadata file content, used to validate the index snapshot
+     */
+    @NotNull
+    protected abstract String getMetadataChecksum(@NotNull String filename) throws IOException;
+
+    @NotNull
+    protected abstract Path getIndexSnapshotPath();
+
+    public abstract Path resolveBundle(RemoteP2BundleInfo remoteP2BundleInfo);
+
+    public abstract Path resolveFeature(RemoteP2Feature remoteP2Feature);
+
+    @NotNull
+    protected InputStream openMetadataFile(@NotNull Path path, @NotNull String xmlEntryName) throws IOException {
+        return FileUtils.openMetadataFile(path, xmlEntryName, false);
+    }
+
+    @Override
+    public String getName() {
+        return getLocation().toString();
+    }
+
+    public boolean isIndexed(String id, String version) {
+        return indexedArtifacts.contains(id, version);
+    }
+
+    @Override
+    public void init(P2BundleLookupCache cache, ContentParserXmlExtension extension) throws RepositoryInitialisationError {
+        if (!RepositoryRegistry.INSTANCE.claim(this)) {
+            log.debug("Repository " + getName() + " is already indexed");
+            return;
+        }
+        try {
+            Properties p2Index = readP2Index();
+            MetadataFile artifactsFile = fetchFirst(getFactoryOrder(p2Index, ARTIFACT_ORDER_PROPERTY, DEFAULT_ARTIFACT_ORDER));
+            if (artifactsFile != null && artifactsFile.isComposite()) {
+                List<String> childrenURLs;
+                try (InputStream inputStream = openMetadataFile(artifactsFile.path(), COMPOSITE_ARTIFACTS_XML)) {
+                    childrenURLs = IndexFileParser.INSTANCE.listChildrenRepositories(inputStream);
+                }
+                indexSubRepositories(childrenURLs, cache, extension);
+            } else {
+                MetadataFile contentFile = fetchFirst(getFactoryOrder(p2Index, METADATA_ORDER_PROPERTY, DEFAULT_METADATA_ORDER));
+                loadArtifacts(artifactsFile, contentFile, getFingerprint(artifactsFile, contentFile), cache, extension);
+            }
+        } catch (Exception exception) {
+            throw new RepositoryInitialisationError("Error during" + getName() + " repository initialisation", exception);
+        }
+    }
+
+    /**
+     * Only children whose metadata fingerprint changed are indexed again, new children are indexed.
+     * Removed children are left to {@link RepositoryRegistry#sweep}, they may still be referenced by other composites.
+     */
+    @Override
+    public void refresh(
+        P2BundleLookupCache cache,
+        P2BundleLookupCache staleCache,
+        ContentParserXmlExtension extension
+    ) throws RepositoryInitialisationError {
+        if (!RepositoryRegistry.INSTANCE.claim(this)) {
+            return;
+        }
+        try {
+            Properties p2Index = readP2Index();
+            MetadataFile artifactsFile = fetchFirst(getFactoryOrder(p2Index, ARTIFACT_ORDER_PROPERTY, DEFAULT_ARTIFACT_ORDER));
+            if (artifactsFile != null && artifactsFile.isComposite()) {
+                List<String> childrenURLs;
+                try (InputStream inputStream = openMetadataFile(artifactsFile.path(), COMPOSITE_ARTIFACTS_XML)) {
+                    childrenURLs = IndexFileParser.INSTANCE.listChildrenRepositories(inputStream);
+                }
+                collectOwnEntries(staleCache);
+                refreshSubRepositories(childrenURLs, cache, staleCache, extension);
+            } else {
+                MetadataFile contentFile = fetchFirst(getFactoryOrder(p2Index, METADATA_ORDER_PROPERTY, DEFAULT_METADATA_ORDER));
+                String fingerprint = getFingerprint(artifactsFile, contentFile);
+                if (subRepositories.isEmpty() && fingerprint.equals(indexFingerprint)) {
+                    log.debug("Repository " + getName() + " is not changed");
+                    return;
+                }
+                log.info("Repository " + getName() + " is changed, re-indexing...");
+                subRepositories.clear();
+                collectOwnEntries(staleCache);
+                loadArtifacts(artifactsFile, contentFile, fingerprint, cache, extension);
+            }
+        } catch (Exception exception) {
+            throw new RepositoryInitialisationError("Error during" + getName() + " repository refresh", exception);
+        }
+    }
+
+    @NotNull
+    private Properties readP2Index() throws IOException, URISyntaxException {
+        Path p2IndexPath = fetchMetadataFile(P2_INDEX_FILE);
+        Properties p2Index = new Properties();
+        if (p2IndexPath != null) {
+            try {
+                p2Index = FileUtils.readPropertiesFile(p2IndexPath);
+            } catch (IOException e) {
+                log.warn("Cannot read " + P2_INDEX_FILE + " of " + getName() + ", default layout will be used", e);
+            }
+        }
+        return p2Index;
+    }
+
+    /**
+     * Converts the factory order from p2.index into the list of files to look for.
+     * An "*.xml" entry stands for both the jar and the plain xml, "!" ends the list.
+     */
+    @NotNull
+    private static List<String> getFactoryOrder(@NotNull Properties p2Index, @NotNull String property, @NotNull List<String> defaultOrder) {
+        String order = p2Index.getProperty(property);
+        List<String> entries = order == null ? defaultOrder : Arrays.stream(order.split(",")).map(String::trim).toList();
+        List<String> files = new ArrayList<>();
+        for (String entry : entries) {
+            if ("!".equals(entry)) {
+                break;
+            }
+            if (entry.endsWith(".xml")) {
+                files.add(entry.substring(0, entry.length() - ".xml".length()) + ".jar");
+            }
+            if (!entry.isEmpty()) {
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+
+    @Nullable
+    private MetadataFile fetchFirst(@NotNull List<String> filenames) throws IOException, URISyntaxException {
+        for (String filename : filenames) {
+            Path path = fetchMetadataFile(filename);
+            if (path != null) {
+                return new MetadataFile(filename, path);
+            }
+        }
+        return null;
+    }
+
+    private void indexSubRepositories(
+        List<String> childrenURLs,
+        P2BundleLookupCache cache,
+        ContentParserXmlExtension extension
+    ) throws MalformedURLException, RepositoryInitialisationError {
+        List<RepositoryIndexTask> tasks = new ArrayList<>();
+        for (String childrenURL : childrenURLs) {
+            URI location = getLocation().resolve(childrenURL + "/");
+            if (subRepositories.containsKey(location)) {
+                continue;
+            }
+            P2Repository childP2repository = forLocation(location);
+            subRepositories.put(location, childP2repository);
+            log.info("Indexing " + childP2repository.getName() + " sub repository...");
+            tasks.add(new RepositoryIndexTask(childP2repository, extension));
+        }
+        RepositoryIndexTask.indexAll(tasks, cache);
+    }
+
+    private void refreshSubRepositories(
+        List<String> childrenURLs,
+        P2BundleLookupCache cache,
+        P2BundleLookupCache staleCache,
+        ContentParserXmlExtension extension
+    ) throws MalformedURLException, RepositoryInitialisationError {
+        subRepositories.clear();
+        List<RepositoryIndexTask> tasks = new ArrayList<>();
+        for (String childrenURL : childrenURLs) {
+            URI location = getLocation().resolve(childrenURL + "/");
+            if (subRepositories.containsKey(location)) {
+                continue;
+            }
+            // Refresh of a repository that was never indexed is a full indexing
+            P2Repository childP2repository = forLocation(location);
+            subRepositories.put(location, childP2repository);
+            tasks.add(new RepositoryIndexTask(childP2repository, extension, true));
+        }
+        RepositoryIndexTask.refreshAll(tasks, cache, staleCache);
+    }
+
+    boolean markVisited(int pass) {
+        return visitedPass.getAndUpdate(it -> Math.max(it, pass)) < pass;
+    }
+
+    int getVisitedPass() {
+        return visitedPass.get();
+    }
+
+    /**
+     * Moves the entries this repository contributed to the lookup cache into the target.
+     */
+    void collectOwnEntries(P2BundleLookupCache target) {
+        for (int i = 0; i < remoteBundleUnits.size(); i++) {
+            target.addRemoteBundle(remoteBundleUnits.get(i));
+        }
+        for (RemoteP2Feature remoteP2Feature : remoteP2FeatureSet) {
+            target.addRemoteFeature(remoteP2Feature);
+        }
+        remoteBundleUnits.clear();
+        remoteP2FeatureSet.clear();
+        indexFingerprint = null;
+    }
+
+    @Override
+    public void addEntries(P2BundleLookupCache target, Set<IRepository<?>> visited) {
+        if (!visited.add(this)) {
+            return;
+        }
+        for (int i = 0; i < remoteBundleUnits.size(); i++) {
+            target.addRemoteBundle(remoteBundleUnits.get(i));
+        }
+        for (RemoteP2Feature remoteP2Feature : remoteP2FeatureSet) {
+            target.addRemoteFeature(remoteP2Feature);
+        }
+        for (P2Repository subRepository : subRepositories.values()) {
+            subRepository.addEntries(target, visited);
+        }
+    }
+
+    @NotNull
+    private String getFingerprint(@Nullable MetadataFile artifactsFile, @Nullable MetadataFile contentFile) throws IOException {
+        if (contentFile == null) {
+            return "";
+        }
+        String fingerprint = getMetadataChecksum(contentFile.name());
+        if (artifactsFile != null) {
+            fingerprint = getMetadataChecksum(artifactsFile.name()) + ":" + fingerprint;
+        }
+        return fingerprint;
+    }
+
+    private void loadArtifacts(
+        @Nullable MetadataFile artifactsFile,
+        @Nullable MetadataFile contentFile,
+        @NotNull String checksum,
+        P2BundleLookupCache cache,
+        ContentParserXmlExtension extension
+    ) throws RepositoryInitialisationError {
+        try {
+            indexFingerprint = checksum;
+            artifactsMetadata = artifactsFile;
+            indexedArtifacts = null;
+            if (contentFile != null) {
+                Path snapshotPath = getIndexSnapshotPath();
+                List<TargetEnvironment> environments = P2RepositoryManager.INSTANCE.getTargetEnvironments();
+                // Platform masks of the snapshot are only valid for the same list of target environments
+                String snapshotKey = checksum + "@" + environments;
+                // Extensions have to see every parsed element, so the snapshot can only be used without them
+                if (extension == null && RepositoryIndexSnapshot.load(snapshotPath, this, snapshotKey, cache)) {
+                    log.info("Repository " + getName() + " loaded from index snapshot, " +
+                        (remoteBundleUnits.size() + remoteP2FeatureSet.size()) + " artifacts found");
+                    return;
+                }
+                if (artifactsFile != null) {
+                    indexedArtifacts = readArtifactIndex(artifactsFile);
+                }
+                P2RepositoryManager manager = P2RepositoryManager.INSTANCE;
+                if (extension == null && manager.isParallelContentParsing() && manager.tryAcquireContentBuffer()) {
+                    try {
+                        ByteBuffer content = FileUtils.readMetadataFile(contentFile.path(), CONTENT_XML);
+                        ContentFileHandler.indexContentInChunks(this, content, cache, environments);
+                    } finally {
+                        manager.releaseContentBuffer();
+                    }
+                } else {
+                    try (InputStream inputStream = openMetadataFile(contentFile.path(), CONTENT_XML)) {
+                        ContentFileHandler.indexContent(this, inputStream, cache, extension, environments);
+                    }
+                }
+                RepositoryIndexSnapshot.save(snapshotPath, this, snapshotKey);
+                log.info("Repository " + getName() + " indexed, " +
+                    (remoteBundleUnits.size() + remoteP2FeatureSet.size()) + " artifacts found");
+            }
+        } catch (Exception e) {
+            throw new RepositoryInitialisationError("Error during repository indexing", e);
+        }
+    }
+
+    public void addRemoteBundles(IntList units) {
+        remoteBundleUnits.addAll(units);
+    }
+
+    public void addRemoteFeatures(Collection<RemoteP2Feature> features) {
+        remoteP2FeatureSet.addAll(features);
+    }
+
+    IntList getRemoteBundleUnits() {
+        return remoteBundleUnits;
+    }
+
+    /**
+     * Replaces the unit ids after {@link RemoteBundleStore#compact}.
+     */
+    void renumberRemoteBundles(int[] newUnits) {
+        IntList units = new IntList(remoteBundleUnits.size());
+        for (int i = 0; i < remoteBundleUnits.size(); i++) {
+            units.add(newUnits[remoteBundleUnits.get(i)]);
+        }
+        remoteBundleUnits.clear();
+        remoteBundleUnits.addAll(units);
+    }
+
+    Collection<RemoteP2Feature> getRemoteFeatures() {
+        return remoteP2FeatureSet;
+    }
+
+    /**
+     * @return repository-level property of the artifacts metadata or null if there is no such property
+     */
+    @Nullable
+    protected String getArtifactsProperty(@NotNull String name) throws IOException, XMLStreamException {
+        MetadataFile artifactsFile = artifactsMetadata;
+        if (artifactsFile == null) {
+            return null;
+        }
+        try (InputStream inputStream = openMetadataFile(artifactsFile.path(), ARTIFACTS_XML)) {
+            return IndexFileParser.INSTANCE.readRepositoryProperties(inputStream).get(name);
+        }
+    }
+
+    /**
+     * @return name of the artifacts metadata file, it is present in every copy of the repository
+     */
+    @Nullable
+    protected String getArtifactsFileName() {
+        MetadataFile artifactsFile = artifactsMetadata;
+        return artifactsFile == null ? null : artifactsFile.name();
+    }
+
+    /**
+     * @return published checksum of the artifact or null if it is unknown
+     */
+    @Nullable
+    public ArtifactChecksum getArtifactChecksum(@NotNull String classifier, @NotNull String id, @NotNull String version) {
+        ArtifactIndex index = getArtifactIndex();
+        return index == null ? null : index.getChecksum(classifier, id, version);
+    }
+
+    @Nullable
+    private ArtifactIndex getArtifactIndex() {
+        ArtifactIndex index = indexedArtifacts;
+        if (index == null) {
+            synchronized (this) {
+                index = indexedArtifacts;
+                MetadataFile artifactsFile = artifactsMetadata;
+                if (index == null && artifactsFile != null) {
+                    try {
+                        index = readArtifactIndex(artifactsFile);
+                    } catch (IOException | XMLStreamException e) {
+                        log.warn("Cannot read artifacts of " + getName() + ", downloads will not be verified", e);
+                        index = new ArtifactIndex();
+                    }
+                    indexedArtifacts = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    @NotNull
+    private ArtifactIndex readArtifactIndex(@NotNull MetadataFile artifactsFile) throws IOException, XMLStreamException {
+        try (InputStream inputStream = openMetadataFile(artifactsFile.path(), ARTIFACTS_XML)) {
+            return IndexFileParser.INSTANCE.readArtifactIndex(inputStream);
+        }
+    }
+
+    private record MetadataFile(String name, Path path) {
+        private boolean isComposite() {
+            return name.startsWith("composite");
+        }
+    }
+}
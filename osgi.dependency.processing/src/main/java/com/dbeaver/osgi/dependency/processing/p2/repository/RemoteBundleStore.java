@@ -0,0 +1,429 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import com.dbeaver.osgi.dependency.processing.util.Version;
+import com.dbeaver.osgi.dependency.processing.util.VersionRange;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packed storage of all indexed remote bundles.
+ * <p>
+ * Every bundle is a unit id, its metadata is kept in int columns referencing the symbol table,
+ * so the repository indexes cost a few ints per bundle and requirement instead of an object graph.
+ * {@link RemoteP2BundleInfo} objects are only created for the units the resolution asks for and are
+ * reused afterwards. Columns may live outside the Java heap, see {@link #setOffHeap(boolean)}.
+ * <p>
+ * Units are appended, re-indexed repositories add new units and the replaced ones stay until {@link #compact}.
+ */
+public class RemoteBundleStore {
+    private static final Logger log = LoggerFactory.getLogger(RemoteBundleStore.class);
+
+    public static final RemoteBundleStore INSTANCE = new RemoteBundleStore();
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NULL_REF = -1;
+
+    private static final int FLAG_ZIPPED = 1;
+    private static final int FLAG_START_LEVEL = 2;
+    private static final int FLAG_FRAGMENT = 4;
+
+    private boolean offHeap;
+
+    // Unit columns
+    private final IntColumn names = new IntColumn();
+    private final IntColumn versions = new IntColumn();
+    private final IntColumn repositoryRefs = new IntColumn();
+    private final IntColumn flags = new IntColumn();
+    private final IntColumn startLevels = new IntColumn();
+    private final IntColumn platforms = new IntColumn();
+    private final IntColumn fragmentHosts = new IntColumn();
+    private final IntColumn requireOffsets = new IntColumn();
+    private final IntColumn exportOffsets = new IntColumn();
+    private final IntColumn reexportOffsets = new IntColumn();
+    private final IntColumn importOffsets = new IntColumn();
+
+    // Requirement columns, rows of a unit are contiguous and start at its offset
+    private final IntColumn requireNames = new IntColumn();
+    private final IntColumn requireRanges = new IntColumn();
+    private final IntColumn requirePlatforms = new IntColumn();
+    private final IntColumn exportNames = new IntColumn();
+    private final IntColumn exportVersions = new IntColumn();
+    private final IntColumn reexportNames = new IntColumn();
+    private final IntColumn importNames = new IntColumn();
+    private final IntColumn importRanges = new IntColumn();
+    private final IntColumn importPlatforms = new IntColumn();
+
+    private final ValueTable<P2Repository> repositories = new ValueTable<>();
+    private final ValueTable<Version> packageVersions = new ValueTable<>();
+    private final ValueTable<VersionRange> ranges = new ValueTable<>();
+
+    // Bundle objects by platform mask of the view in the high half and unit id in the low half
+    private final Map<Long, RemoteP2BundleInfo> bundles = new ConcurrentHashMap<>();
+
+    private int unitCount;
+
+    /**
+     * Keeps the columns in direct buffers, applies to the columns growing after the call.
+     */
+    public synchronized void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @return unit id of the new bundle
+     */
+    public synchronized int add(@NotNull RemoteP2BundleInfo.RemoteBundleInfoBuilder builder) {
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        names.add(symbols.getId(builder.getBundleName()));
+        versions.add(symbols.getId(builder.getBundleVersion()));
+        repositoryRefs.add(repositories.indexOf(builder.getRepository()));
+        Integer startLevel = builder.startLevel;
+        String fragmentHost = builder.getFragmentHost();
+        flags.add((builder.isZipped() ? FLAG_ZIPPED : 0)
+            | (startLevel != null ? FLAG_START_LEVEL : 0)
+            | (fragmentHost != null ? FLAG_FRAGMENT : 0));
+        startLevels.add(startLevel != null ? startLevel : 0);
+        platforms.add(builder.getPlatforms());
+        fragmentHosts.add(fragmentHost != null ? symbols.getId(fragmentHost) : 0);
+
+        requireOffsets.add(requireNames.size());
+        List<Pair<String, VersionRange>> requireBundles = builder.getRequireBundles();
+        for (int i = 0; i < requireBundles.size(); i++) {
+            requireNames.add(symbols.getId(requireBundles.get(i).getFirst()));
+            requireRanges.add(ranges.indexOf(requireBundles.get(i).getSecond()));
+            requirePlatforms.add(builder.getRequireBundlePlatforms(i));
+        }
+        exportOffsets.add(exportNames.size());
+        for (Pair<String, Version> exportPackage : builder.getExportPackages()) {
+            exportNames.add(symbols.getId(exportPackage.getFirst()));
+            exportVersions.add(packageVersions.indexOf(exportPackage.getSecond()));
+        }
+        reexportOffsets.add(reexportNames.size());
+        for (String reexportedBundle : builder.getReexportedBundles()) {
+            reexportNames.add(symbols.getId(reexportedBundle));
+        }
+        importOffsets.add(importNames.size());
+        for (Pair<String, VersionRange> importPackage : builder.getImportPackages()) {
+            importNames.add(symbols.getId(importPackage.getFirst()));
+            importRanges.add(ranges.indexOf(importPackage.getSecond()));
+            importPlatforms.add(builder.getImportPackagePlatforms(importPackage));
+        }
+        return unitCount++;
+    }
+
+    /**
+     * Bundle object of the unit as seen by the target environments of the mask, created on the first request.
+     * Requirements whose filter matches none of the environments are left out.
+     */
+    @NotNull
+    public RemoteP2BundleInfo getBundle(int unit, int platformMask) {
+        long key = ((long) platformMask << 32) | unit;
+        RemoteP2BundleInfo bundle = bundles.get(key);
+        if (bundle != null) {
+            return bundle;
+        }
+        return bundles.computeIfAbsent(key, it -> createBuilder(unit, platformMask).build());
+    }
+
+    /**
+     * Builder with the metadata of the unit, requirements keep the masks of their target environments.
+     *
+     * @param platformMask target environments the requirements are filtered for, -1 keeps all of them
+     */
+    @NotNull
+    synchronized RemoteP2BundleInfo.RemoteBundleInfoBuilder createBuilder(int unit, int platformMask) {
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        RemoteP2BundleInfo.RemoteBundleInfoBuilder builder = new RemoteP2BundleInfo.RemoteBundleInfoBuilder()
+            .bundleName(symbols.getSymbol(names.get(unit)))
+            .version(symbols.getSymbol(versions.get(unit)))
+            .repositoryURL(repositories.get(repositoryRefs.get(unit)));
+        int unitFlags = flags.get(unit);
+        builder.setZipped((unitFlags & FLAG_ZIPPED) != 0);
+        builder.setPlatforms(platforms.get(unit));
+        if ((unitFlags & FLAG_START_LEVEL) != 0) {
+            builder.setStartLevel(startLevels.get(unit));
+        }
+        if ((unitFlags & FLAG_FRAGMENT) != 0) {
+            builder.setFragmentHost(symbols.getSymbol(fragmentHosts.get(unit)));
+        }
+        for (int i = requireOffsets.get(unit), end = getEnd(requireOffsets, requireNames, unit); i < end; i++) {
+            if ((requirePlatforms.get(i) & platformMask) != 0) {
+                builder.addToRequiredBundles(symbols.getSymbol(requireNames.get(i)), ranges.get(requireRanges.get(i)),
+                    requirePlatforms.get(i));
+            }
+        }
+        for (int i = exportOffsets.get(unit), end = getEnd(exportOffsets, exportNames, unit); i < end; i++) {
+            builder.addToExportPackage(symbols.getSymbol(exportNames.get(i)), packageVersions.get(exportVersions.get(i)));
+        }
+        for (int i = reexportOffsets.get(unit), end = getEnd(reexportOffsets, reexportNames, unit); i < end; i++) {
+            builder.addReexportedBundle(symbols.getSymbol(reexportNames.get(i)));
+        }
+        for (int i = importOffsets.get(unit), end = getEnd(importOffsets, importNames, unit); i < end; i++) {
+            if ((importPlatforms.get(i) & platformMask) != 0) {
+                builder.addToRequiredPackages(symbols.getSymbol(importNames.get(i)), ranges.get(importRanges.get(i)),
+                    importPlatforms.get(i));
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @return symbol id of the bundle name
+     */
+    public synchronized int getNameId(int unit) {
+        return names.get(unit);
+    }
+
+    /**
+     * @return bits of the target environments the bundle is available on
+     */
+    public synchronized int getPlatforms(int unit) {
+        return platforms.get(unit);
+    }
+
+    @NotNull
+    public synchronized String getBundleVersion(int unit) {
+        return SymbolTable.INSTANCE.getSymbol(versions.get(unit));
+    }
+
+    /**
+     * @return symbol ids of the exported packages
+     */
+    @NotNull
+    public synchronized int[] getExportIds(int unit) {
+        int start = exportOffsets.get(unit);
+        int[] result = new int[getEnd(exportOffsets, exportNames, unit) - start];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = exportNames.get(start + i);
+        }
+        return result;
+    }
+
+    public synchronized int getUnitCount() {
+        return unitCount;
+    }
+
+    /**
+     * Drops the units which are not live anymore, e.g. of re-indexed repositories, the remaining ones are renumbered
+     * keeping their order. Bundle objects of the remaining units are kept, the caller has to renumber its unit ids.
+     *
+     * @return new unit id by the old one, -1 for the dropped units
+     */
+    @NotNull
+    public synchronized int[] compact(@NotNull BitSet liveUnits) {
+        int[] newUnits = new int[unitCount];
+        Arrays.fill(newUnits, NULL_REF);
+        List<P2Repository> oldRepositories = repositories.detach();
+        List<Version> oldPackageVersions = packageVersions.detach();
+        List<VersionRange> oldRanges = ranges.detach();
+        // Units and their rows only move towards the start, so the columns are compacted in place
+        int newUnitCount = 0;
+        int requireSize = 0;
+        int exportSize = 0;
+        int reexportSize = 0;
+        int importSize = 0;
+        for (int unit = liveUnits.nextSetBit(0); unit >= 0 && unit < unitCount; unit = liveUnits.nextSetBit(unit + 1)) {
+            int newUnit = newUnitCount++;
+            newUnits[unit] = newUnit;
+            names.set(newUnit, names.get(unit));
+            versions.set(newUnit, versions.get(unit));
+            repositoryRefs.set(newUnit, repositories.indexOf(getValue(oldRepositories, repositoryRefs.get(unit))));
+            flags.set(newUnit, flags.get(unit));
+            startLevels.set(newUnit, startLevels.get(unit));
+            platforms.set(newUnit, platforms.get(unit));
+            fragmentHosts.set(newUnit, fragmentHosts.get(unit));
+
+            // The end of the rows is the offset of the next unit, it is read before that offset is moved
+            int requireEnd = getEnd(requireOffsets, requireNames, unit);
+            int requireStart = requireOffsets.get(unit);
+            requireOffsets.set(newUnit, requireSize);
+            for (int i = requireStart; i < requireEnd; i++, requireSize++) {
+                requireNames.set(requireSize, requireNames.get(i));
+                requireRanges.set(requireSize, ranges.indexOf(getValue(oldRanges, requireRanges.get(i))));
+                requirePlatforms.set(requireSize, requirePlatforms.get(i));
+            }
+            int exportEnd = getEnd(exportOffsets, exportNames, unit);
+            int exportStart = exportOffsets.get(unit);
+            exportOffsets.set(newUnit, exportSize);
+            for (int i = exportStart; i < exportEnd; i++, exportSize++) {
+                exportNames.set(exportSize, exportNames.get(i));
+                exportVersions.set(exportSize,
+                    packageVersions.indexOf(getValue(oldPackageVersions, exportVersions.get(i))));
+            }
+            int reexportEnd = getEnd(reexportOffsets, reexportNames, unit);
+            int reexportStart = reexportOffsets.get(unit);
+            reexportOffsets.set(newUnit, reexportSize);
+            for (int i = reexportStart; i < reexportEnd; i++, reexportSize++) {
+                reexportNames.set(reexportSize, reexportNames.get(i));
+            }
+            int importEnd = getEnd(importOffsets, importNames, unit);
+            int importStart = importOffsets.get(unit);
+            importOffsets.set(newUnit, importSize);
+            for (int i = importStart; i < importEnd; i++, importSize++) {
+                importNames.set(importSize, importNames.get(i));
+                importRanges.set(importSize, ranges.indexOf(getValue(oldRanges, importRanges.get(i))));
+                importPlatforms.set(importSize, importPlatforms.get(i));
+            }
+        }
+        for (IntColumn column : List.of(names, versions, repositoryRefs, flags, startLevels, platforms, fragmentHosts,
+            requireOffsets, exportOffsets, reexportOffsets, importOffsets)) {
+            column.truncate(newUnitCount);
+        }
+        requireNames.truncate(requireSize);
+        requireRanges.truncate(requireSize);
+        requirePlatforms.truncate(requireSize);
+        exportNames.truncate(exportSize);
+        exportVersions.truncate(exportSize);
+        reexportNames.truncate(reexportSize);
+        importNames.truncate(importSize);
+        importRanges.truncate(importSize);
+        importPlatforms.truncate(importSize);
+        log.info("Remote bundle store compacted from " + unitCount + " to " + newUnitCount + " bundles");
+        unitCount = newUnitCount;
+
+        Map<Long, RemoteP2BundleInfo> liveBundles = new HashMap<>();
+        for (Map.Entry<Long, RemoteP2BundleInfo> entry : bundles.entrySet()) {
+            long key = entry.getKey();
+            int newUnit = newUnits[(int) key];
+            if (newUnit != NULL_REF) {
+                liveBundles.put((key & 0xFFFFFFFF00000000L) | newUnit, entry.getValue());
+            }
+        }
+        bundles.clear();
+        bundles.putAll(liveBundles);
+        return newUnits;
+    }
+
+    public synchronized void logStatistics() {
+        long bytes = 0;
+        for (IntColumn column : List.of(names, versions, repositoryRefs, flags, startLevels, platforms, fragmentHosts,
+            requireOffsets,
+            exportOffsets, reexportOffsets, importOffsets, requireNames, requireRanges, requirePlatforms, exportNames,
+            exportVersions, reexportNames, importNames, importRanges, importPlatforms)) {
+            bytes += (long) column.capacity() * Integer.BYTES;
+        }
+        log.info("Remote bundle store: " + unitCount + " bundles, " + bundles.size() + " materialized, ~"
+            + bytes / 1024 + " KB of " + (offHeap ? "off-heap" : "heap") + " columns");
+    }
+
+    @Nullable
+    private static <T> T getValue(@NotNull List<T> values, int index) {
+        return index == NULL_REF ? null : values.get(index);
+    }
+
+    private int getEnd(@NotNull IntColumn offsets, @NotNull IntColumn rows, int unit) {
+        return unit + 1 < unitCount ? offsets.get(unit + 1) : rows.size();
+    }
+
+    private final class IntColumn {
+        private IntBuffer buffer = allocate(INITIAL_CAPACITY);
+        private int size;
+
+        private void add(int value) {
+            if (size == buffer.capacity()) {
+                IntBuffer newBuffer = allocate(size * 2);
+                newBuffer.put(0, buffer, 0, size);
+                buffer = newBuffer;
+            }
+            buffer.put(size++, value);
+        }
+
+        private int get(int index) {
+            return buffer.get(index);
+        }
+
+        private void set(int index, int value) {
+            buffer.put(index, value);
+        }
+
+        private void truncate(int size) {
+            this.size = size;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+
+        @NotNull
+        private IntBuffer allocate(int capacity) {
+            if (offHeap) {
+                return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            return IntBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Numbers the values by identity, they are interned in the symbol table already.
+     */
+    private static final class ValueTable<T> {
+        private final Map<T, Integer> indexes = new IdentityHashMap<>();
+        private final List<T> values = new ArrayList<>();
+
+        private int indexOf(@Nullable T value) {
+            if (value == null) {
+                return NULL_REF;
+            }
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            return index;
+        }
+
+        @Nullable
+        private T get(int index) {
+            return index == NULL_REF ? null : values.get(index);
+        }
+
+        /**
+         * Empties the table, the values are returned by their old indexes.
+         */
+        @NotNull
+        private List<T> detach() {
+            List<T> oldValues = new ArrayList<>(values);
+            indexes.clear();
+            values.clear();
+            return oldValues;
+        }
+    }
+}
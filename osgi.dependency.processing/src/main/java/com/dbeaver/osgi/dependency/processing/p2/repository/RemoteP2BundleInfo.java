@@ -24,6 +24,10 @@ import org.jkiss.code.NotNull;
 import org.jkiss.code.Nullable;
 import com.dbeaver.osgi.dependency.processing.resolvers.DynamicImportsResolver;
 import com.dbeaver.osgi.dependency.processing.resolvers.ManifestParser;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import com.dbeaver.osgi.dependency.processing.util.VerifiedArtifacts;
 import com.dbeaver.osgi.dependency.processing.util.Version;
 import com.dbeaver.osgi.dependency.processing.util.VersionRange;
 import org.jkiss.utils.Pair;
@@ -35,20 +39,20 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 public class RemoteP2BundleInfo extends BundleInfo {
     private static final Logger log = LoggerFactory.getLogger(RemoteP2BundleInfo.class);
 
-    private final RemoteP2Repository repository;
+    private final P2Repository repository;
     private final boolean zipped;
-    private final Lock lock = new ReentrantLock();
+    // Single flight of the bundle resolution, every caller waits for the same download
+    private volatile CompletableFuture<Boolean> download;
 
     private RemoteP2BundleInfo(
-        @NotNull RemoteP2Repository repositoryURL,
+        @NotNull P2Repository repositoryURL,
         @NotNull String bundleName,
         @NotNull String bundleVersion,
         @NotNull List<String> classpathLibs,
@@ -56,6 +60,7 @@ public class RemoteP2BundleInfo extends BundleInfo {
         @NotNull Set<Pair<String, Version>> exportPackages,
         @NotNull Set<String> reexportedBundles,
         @NotNull Set<Pair<String, VersionRange>> importPackages,
+        @Nullable Pair<String, VersionRange> fragmentHost,
         @Nullable Integer startLevel,
         boolean zipped
     ) {
@@ -69,7 +74,7 @@ public class RemoteP2BundleInfo extends BundleInfo {
             exportPackages,
             importPackages,
             List.of(),
-            null,
+            fragmentHost,
             startLevel,
             null
         );
@@ -78,101 +83,172 @@ public class RemoteP2BundleInfo extends BundleInfo {
         this.path = getPluginPath();
     }
 
+    /**
+     * Downloads the bundle and waits for the result.
+     */
     public boolean resolveBundle() {
-        while (!lock.tryLock()) {
-            // Already resolving by another thread
-            Thread.onSpinWait();
+        return Boolean.TRUE.equals(requestDownload(DownloadScheduler.Priority.BLOCKING).join());
+    }
+
+    /**
+     * Schedules the download of a bundle the result uses, the resolver may continue from the metadata.
+     * The bundle content is awaited by the getters which need the manifest.
+     */
+    @NotNull
+    public CompletableFuture<Boolean> requestDownload() {
+        return requestDownload(isSourceBundle() ? DownloadScheduler.Priority.SOURCE : DownloadScheduler.Priority.REQUIRED);
+    }
+
+    /**
+     * Schedules the bundle download, a download already queued with a lower priority is moved ahead.
+     * A failed download is scheduled again.
+     */
+    @NotNull
+    public CompletableFuture<Boolean> requestDownload(@NotNull DownloadScheduler.Priority priority) {
+        DownloadScheduler scheduler = P2RepositoryManager.INSTANCE.getDownloadScheduler();
+        CompletableFuture<Boolean> currentDownload = download;
+        if (currentDownload == null) {
+            synchronized (this) {
+                currentDownload = download;
+                if (currentDownload == null) {
+                    CompletableFuture<Boolean> newDownload =
+                        scheduler.submit(getBundleName() + "_" + getBundleVersion(), priority, this::download);
+                    // A failed download is requested again by the next caller
+                    newDownload.thenAccept(result -> {
+                        if (!Boolean.TRUE.equals(result)) {
+                            synchronized (this) {
+                                if (download == newDownload) {
+                                    download = null;
+                                }
+                            }
+                        }
+                    });
+                    download = newDownload;
+                    return newDownload;
+                }
+            }
+        }
+        scheduler.escalate(currentDownload, priority);
+        return currentDownload;
+    }
+
+    /**
+     * Runs once per bundle until it succeeds, the manifest values are published as immutable collections
+     * and read without locking.
+     */
+    private boolean download() {
+        if (VerifiedArtifacts.isValid(path, getChecksum())) {
+            return true;
         }
         try {
-            if (path.toFile().exists()) {
-                return true;
+            // Leftovers of an interrupted or corrupted download
+            VerifiedArtifacts.remove(path);
+        } catch (IOException e) {
+            log.error("Cannot remove invalid bundle " + path, e);
+            return false;
+        }
+        log.info("Downloading %s_%s from %s... ".formatted(getBundleName(), getBundleVersion(), getRepository().getName()));
+        log.debug("Thread number %s used to download %s".formatted(Thread.currentThread().getName(), getBundleName()));
+        Path filePath = repository.resolveBundle(this);
+        if (filePath == null) {
+            return false;
+        }
+        if (path.toFile().isDirectory()) {
+            File manifestFile = path.resolve(DynamicImportsResolver.MANIFEST_PATH).toFile();
+            if (!manifestFile.exists()) {
+                log.error("Cannot find '{}'", manifestFile.getPath());
+                return false;
             }
-            log.info("Downloading %s_%s from %s... ".formatted(getBundleName(), getBundleVersion(), getRepository().getName()));
-            log.debug("Thread number %s used to download %s".formatted(Thread.currentThread().getName(), getBundleName()));
-            Path filePath = repository.resolveBundle(this);
-            if (filePath == null) {
+            try (var inputStream = new FileInputStream(manifestFile)) {
+                var manifest = new Manifest(inputStream);
+                publishManifest(manifest);
+            } catch (IOException e) {
+                log.error("Cannot load bundle %s".formatted(getBundleName()), e);
                 return false;
             }
-            if (path.toFile().isDirectory()) {
-                File manifestFile = path.resolve(DynamicImportsResolver.MANIFEST_PATH).toFile();
-                if (!manifestFile.exists()) {
-                    log.error("Cannot find '{}'", manifestFile.getPath());
-                    return false;
-                }
-                try (var inputStream = new FileInputStream(manifestFile)) {
-                    var manifest = new Manifest(inputStream);
-                    this.classpathLibs = ManifestParser.parseBundleClasspath(manifest.getMainAttributes());
-                    this.reexportedBundles = ManifestParser.parseReexportedBundles(manifest.getMainAttributes());
-                    this.fragmentHost = ManifestParser.parseFragmentHost(manifest.getMainAttributes());
-                } catch (IOException e) {
-                    log.error("Cannot load bundle %s".formatted(getBundleName()), e);
-                    return false;
-                }
-            } else {
-                try (var jarFile = new JarFile(path.toFile())) {
-                    var manifest = jarFile.getManifest();
-                    this.classpathLibs = ManifestParser.parseBundleClasspath(manifest.getMainAttributes());
-                    this.reexportedBundles = ManifestParser.parseReexportedBundles(manifest.getMainAttributes());
-                    this.fragmentHost = ManifestParser.parseFragmentHost(manifest.getMainAttributes());
-                } catch (IOException e) {
-                    log.error("Cannot load bundle %s".formatted(getBundleName()), e);
-                    return false;
-                }
+        } else {
+            try (var jarFile = new JarFile(path.toFile())) {
+                publishManifest(jarFile.getManifest());
+            } catch (IOException e) {
+                log.error("Cannot load bundle %s".formatted(getBundleName()), e);
+                return false;
             }
-            Collection<RemoteP2BundleInfo> sourceBundle = P2RepositoryManager.INSTANCE.getLookupCache().getRemoteBundlesByName(getBundleName() + ".source");
-            if (!sourceBundle.isEmpty()) {
-                for (RemoteP2BundleInfo remoteP2BundleInfo : sourceBundle) {
-                    if (remoteP2BundleInfo.getBundleVersion().equalsIgnoreCase(getBundleVersion())) {
-                        remoteP2BundleInfo.resolveBundle();
-                    }
+        }
+        Collection<RemoteP2BundleInfo> sourceBundle = P2RepositoryManager.INSTANCE.getLookupCache().getRemoteBundlesByName(getBundleName() + ".source");
+        if (!sourceBundle.isEmpty()) {
+            for (RemoteP2BundleInfo remoteP2BundleInfo : sourceBundle) {
+                if (remoteP2BundleInfo.getBundleVersion().equalsIgnoreCase(getBundleVersion())) {
+                    // Waiting here would hold a download slot
+                    remoteP2BundleInfo.requestDownload(DownloadScheduler.Priority.SOURCE);
                 }
             }
-            log.info("%s download completed".formatted(getBundleName()));
-            return true;
-        } finally {
-            lock.unlock();
         }
+        log.info("%s download completed".formatted(getBundleName()));
+        return true;
+    }
+
+    private void publishManifest(@NotNull Manifest manifest) {
+        // Immutable copies are safely published without synchronization
+        this.classpathLibs = List.copyOf(ManifestParser.parseBundleClasspath(manifest.getMainAttributes()));
+        this.reexportedBundles = Collections.unmodifiableSet(
+            new LinkedHashSet<>(ManifestParser.parseReexportedBundles(manifest.getMainAttributes())));
     }
 
     @NotNull
     @Override
     public List<String> getClasspathLibs() {
-        while (!lock.tryLock()) {
-            Thread.onSpinWait();
-        }
-        try {
-            return super.getClasspathLibs();
-        } finally {
-            lock.unlock();
-        }
+        awaitDownload();
+        return super.getClasspathLibs();
     }
 
     @NotNull
     @Override
     public Set<String> getReexportedBundles() {
-        while (!lock.tryLock()) {
-            Thread.onSpinWait();
-        }
-        try {
-            return super.getReexportedBundles();
-        } finally {
-            lock.unlock();
-        }
+        awaitDownload();
+        return super.getReexportedBundles();
     }
 
+    /**
+     * Waits for the requested download, the manifest values are only known after it.
+     */
+    private void awaitDownload() {
+        CompletableFuture<Boolean> currentDownload = download;
+        if (currentDownload != null) {
+            P2RepositoryManager.INSTANCE.getDownloadScheduler().escalate(currentDownload, DownloadScheduler.Priority.BLOCKING);
+            currentDownload.join();
+        }
+    }
 
-
-    @Nullable
+    /**
+     * Compares the p2 metadata only, the manifest values would wait for the download.
+     * Resolvers keep bundles in hash sets while their downloads are still running.
+     */
     @Override
-    public Pair<String, VersionRange> getFragmentHost() {
-        while (!lock.tryLock()) {
-            Thread.onSpinWait();
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
         }
-        try {
-            return super.getFragmentHost();
-        } finally {
-            lock.unlock();
+        if (o == null || getClass() != o.getClass()) {
+            return false;
         }
+        RemoteP2BundleInfo that = (RemoteP2BundleInfo) o;
+        return Objects.equals(getPath(), that.getPath()) &&
+            Objects.equals(getBundleName(), that.getBundleName()) &&
+            Objects.equals(getBundleVersion(), that.getBundleVersion()) &&
+            Objects.equals(getRequireBundles(), that.getRequireBundles()) &&
+            Objects.equals(getExportPackages(), that.getExportPackages()) &&
+            Objects.equals(getImportPackages(), that.getImportPackages()) &&
+            Objects.equals(getStartLevel(), that.getStartLevel()) &&
+            Objects.equals(getRequiredJava(), that.getRequiredJava());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getPath(), getBundleName(), getBundleVersion(), getRequireBundles(), getExportPackages(), getImportPackages(), getStartLevel());
+    }
+
+    private boolean isSourceBundle() {
+        return getBundleName().endsWith(".source");
     }
 
     private Path getPluginPath() {
@@ -188,7 +264,15 @@ public class RemoteP2BundleInfo extends BundleInfo {
         return zipped;
     }
 
-    public RemoteP2Repository getRepository() {
+    /**
+     * @return checksum of the bundle jar published by the repository or null if it is unknown
+     */
+    @Nullable
+    ArtifactChecksum getChecksum() {
+        return repository.getArtifactChecksum(P2Repository.BUNDLE_CLASSIFIER, getBundleName(), getBundleVersion());
+    }
+
+    public P2Repository getRepository() {
         return repository;
     }
 
@@ -197,13 +281,18 @@ public class RemoteP2BundleInfo extends BundleInfo {
         private String bundleVersion;
         private List<String> classpathLibs;
 
-        private RemoteP2Repository repository;
+        private P2Repository repository;
         private final List<Pair<String, VersionRange>> requireBundles = new ArrayList<>();
+        // Bits of the target environments each requirement applies to, parallel to the requirements
+        private final IntList requireBundlePlatforms = new IntList();
         private Set<String> reexportedBundles = new HashSet<>();
         private final Set<Pair<String, Version>> exportPackages = new LinkedHashSet<>();
         private final Set<Pair<String, VersionRange>> importPackages = new LinkedHashSet<>();
+        private final Map<Pair<String, VersionRange>, Integer> importPackagePlatforms = new HashMap<>();
         Integer startLevel;
+        private String fragmentHost;
         private boolean zipped = false;
+        private int platforms = -1;
 
         public RemoteBundleInfoBuilder() {
         }
@@ -218,17 +307,82 @@ public class RemoteP2BundleInfo extends BundleInfo {
                 exportPackages,
                 reexportedBundles,
                 importPackages,
+                getFragmentHostRange(),
                 startLevel,
                 zipped
             );
         }
 
+        /**
+         * p2 publishes the host as a bundle requirement of the fragment, its range is the host range.
+         */
+        @Nullable
+        private Pair<String, VersionRange> getFragmentHostRange() {
+            if (fragmentHost == null) {
+                return null;
+            }
+            for (Pair<String, VersionRange> requireBundle : requireBundles) {
+                if (requireBundle.getFirst().equals(fragmentHost)) {
+                    return requireBundle;
+                }
+            }
+            return SymbolTable.INSTANCE.internPair(fragmentHost, null);
+        }
+
         public String getBundleName() {
             return bundleName;
         }
 
+        public String getBundleVersion() {
+            return bundleVersion;
+        }
+
+        P2Repository getRepository() {
+            return repository;
+        }
+
+        List<Pair<String, VersionRange>> getRequireBundles() {
+            return requireBundles;
+        }
+
+        Set<String> getReexportedBundles() {
+            return reexportedBundles;
+        }
+
+        Set<Pair<String, Version>> getExportPackages() {
+            return exportPackages;
+        }
+
+        Set<Pair<String, VersionRange>> getImportPackages() {
+            return importPackages;
+        }
+
+        /**
+         * @return bits of the target environments the requirement with the given index applies to
+         */
+        int getRequireBundlePlatforms(int index) {
+            return requireBundlePlatforms.get(index);
+        }
+
+        int getImportPackagePlatforms(Pair<String, VersionRange> importPackage) {
+            return importPackagePlatforms.getOrDefault(importPackage, -1);
+        }
+
+        boolean isZipped() {
+            return zipped;
+        }
+
+        int getPlatforms() {
+            return platforms;
+        }
+
+        @Nullable
+        String getFragmentHost() {
+            return fragmentHost;
+        }
+
         public RemoteBundleInfoBuilder addReexportedBundle(String reexportedBundle) {
-            this.reexportedBundles.add(reexportedBundle);
+            this.reexportedBundles.add(SymbolTable.INSTANCE.intern(reexportedBundle));
             return this;
         }
 
@@ -242,23 +396,41 @@ public class RemoteP2BundleInfo extends BundleInfo {
             return this;
         }
 
-        public RemoteBundleInfoBuilder repositoryURL(RemoteP2Repository repository) {
+        public RemoteBundleInfoBuilder repositoryURL(P2Repository repository) {
             this.repository = repository;
             return this;
         }
 
         public RemoteBundleInfoBuilder addToRequiredBundles(String requiredBundle, VersionRange range) {
-            this.requireBundles.add(new Pair<>(requiredBundle, range));
+            return addToRequiredBundles(requiredBundle, range, -1);
+        }
+
+        /**
+         * @param platforms bits of the target environments the requirement filter matches
+         */
+        public RemoteBundleInfoBuilder addToRequiredBundles(String requiredBundle, VersionRange range, int platforms) {
+            this.requireBundles.add(SymbolTable.INSTANCE.internPair(requiredBundle, SymbolTable.INSTANCE.internRange(range)));
+            this.requireBundlePlatforms.add(platforms);
             return this;
         }
 
         public RemoteBundleInfoBuilder addToExportPackage(String exportPackage, Version version) {
-            this.exportPackages.add(new Pair<>(exportPackage, version));
+            this.exportPackages.add(SymbolTable.INSTANCE.internPair(exportPackage, SymbolTable.INSTANCE.internVersion(version)));
             return this;
         }
 
         public RemoteBundleInfoBuilder addToRequiredPackages(String importPackage, VersionRange range) {
-            this.importPackages.add(new Pair<>(importPackage, range));
+            return addToRequiredPackages(importPackage, range, -1);
+        }
+
+        /**
+         * @param platforms bits of the target environments the requirement filter matches
+         */
+        public RemoteBundleInfoBuilder addToRequiredPackages(String importPackage, VersionRange range, int platforms) {
+            Pair<String, VersionRange> pair = SymbolTable.INSTANCE.internPair(importPackage, SymbolTable.INSTANCE.internRange(range));
+            this.importPackages.add(pair);
+            // The same package may be required with different filters
+            this.importPackagePlatforms.merge(pair, platforms, (first, second) -> first | second);
             return this;
         }
 
@@ -267,9 +439,22 @@ public class RemoteP2BundleInfo extends BundleInfo {
             return this;
         }
 
+        public RemoteBundleInfoBuilder setFragmentHost(@Nullable String fragmentHost) {
+            this.fragmentHost = fragmentHost == null ? null : SymbolTable.INSTANCE.intern(fragmentHost);
+            return this;
+        }
+
         public RemoteBundleInfoBuilder setZipped(boolean zipped) {
             this.zipped = zipped;
             return this;
         }
+
+        /**
+         * @param platforms bits of the target environments the bundle is available on
+         */
+        public RemoteBundleInfoBuilder setPlatforms(int platforms) {
+            this.platforms = platforms;
+            return this;
+        }
     }
 }
\ No newline at end of file
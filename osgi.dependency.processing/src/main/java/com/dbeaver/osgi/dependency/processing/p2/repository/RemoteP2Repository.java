@@ -18,46 +18,40 @@
 package com.dbeaver.osgi.dependency.processing.p2.repository;
 
 
-import com.dbeaver.osgi.dependency.processing.Artifact;
 import com.dbeaver.osgi.dependency.processing.PathsManager;
-import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.P2RepositoryManager;
 import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
-import com.dbeaver.osgi.dependency.processing.xml.ContentFileHandler;
-import com.dbeaver.osgi.dependency.processing.xml.IndexFileParser;
-import com.dbeaver.osgi.dependency.processing.p2.repository.exception.RepositoryInitialisationError;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
 import com.dbeaver.osgi.dependency.processing.util.FileUtils;
-import com.dbeaver.osgi.dependency.processing.xml.ContentParserXmlExtension;
+import com.dbeaver.osgi.dependency.processing.util.VerifiedArtifacts;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 
-import java.io.File;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
-import java.time.Instant;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
 
-public class RemoteP2Repository implements IRepository<RemoteP2BundleInfo> {
+public class RemoteP2Repository extends P2Repository {
     private static final Logger log = LoggerFactory.getLogger(RemoteP2Repository.class);
 
-    private final URL url;
-    private final List<RemoteP2Repository> subRepositories = new ArrayList<>();
+    private static final String MIRRORS_URL_PROPERTY = "p2.mirrorsURL";
 
-    private final Set<RemoteP2BundleInfo> remoteP2BundleInfoSet = new LinkedHashSet<>();
-    private final Set<RemoteP2Feature> remoteP2FeatureSet = new LinkedHashSet<>();
+    private final URL url;
     private final RepositoryCache fileCache;
-
-    private List<Artifact> indexedArtifacts;
+    private MirrorSelector mirrorSelector;
+    private boolean mirrorsResolved;
 
     public RemoteP2Repository(URL url) {
         this.url = url;
-        this.fileCache = new RepositoryCache();
+        this.fileCache = new RepositoryCache(url);
     }
 
     @Override
@@ -65,179 +59,183 @@ public class RemoteP2Repository implements IRepository<RemoteP2BundleInfo> {
         return url.toString();
     }
 
-    public URL getUrl() {
-        return url;
+    @NotNull
+    @Override
+    public URI getLocation() {
+        return URI.create(url.toString());
     }
 
-    public boolean isIndexed(String id, String version) {
-        for (Artifact indexedArtifact : indexedArtifacts) {
-            if (indexedArtifact.id().equalsIgnoreCase(id)
-                && indexedArtifact.version().toString().equals(version)) {
-                return true;
-            }
-        }
-        return false;
+    public URL getUrl() {
+        return url;
     }
 
+    @Override
     public Path resolveBundle(RemoteP2BundleInfo remoteP2BundleInfo) {
         try {
             Path eclipsePluginsPath = PathsManager.INSTANCE.getEclipsePluginsPath();
-            URI pluginsFolder = url.toURI().resolve("plugins/");
             String pluginFilename = remoteP2BundleInfo.getBundleName() + "_" + remoteP2BundleInfo.getBundleVersion();
-            URI resolve = pluginsFolder.resolve(pluginFilename + ".jar");
+            String artifactPath = PLUGINS_FOLDER + pluginFilename + ".jar";
+            ArtifactChecksum checksum = remoteP2BundleInfo.getChecksum();
             if (remoteP2BundleInfo.isZipped()) {
                 Path file = eclipsePluginsPath.resolve(pluginFilename);
-                Path jarPath = FileUtils.tryToDownloadFile(resolve, null, false);
-                if (jarPath != null) {
-                    boolean success = FileUtils.extractJarToFolder(jarPath, file);
-                    if (success) {
-                        return file;
-                    }
-                }
-                return null;
+                return extractArtifact(artifactPath, file, checksum) ? file : null;
+            }
+            Path file = eclipsePluginsPath.resolve(pluginFilename + ".jar");
+            ArtifactStore artifactStore = getArtifactStore(checksum);
+            Path downloaded;
+            if (artifactStore != null) {
+                Path storedFile = artifactStore.obtain(artifactPath, checksum, it -> downloadFile(artifactPath, it, checksum));
+                downloaded = storedFile == null ? null : FileUtils.linkOrCopy(storedFile, file);
             } else {
-                Path file = eclipsePluginsPath.resolve(pluginFilename + ".jar");
-                return  FileUtils.tryToDownloadFile(resolve, file, false);
+                downloaded = downloadFile(artifactPath, file, checksum);
+            }
+            if (downloaded != null) {
+                recordChecksum(downloaded, checksum);
             }
+            return downloaded;
         } catch (URISyntaxException | IOException e) {
             log.error("Error resolving the artifact", e);
             return null;
         }
     }
 
+    @Override
     public Path resolveFeature(RemoteP2Feature remoteP2Feature) {
         try {
             Path eclipseFeaturesPath = PathsManager.INSTANCE.getEclipseFeaturesPath();
-            URI pluginsFolder = url.toURI().resolve("features/");
             String featureName = remoteP2Feature.getName() + "_" + remoteP2Feature.getVersion();
-            URI resolve = pluginsFolder.resolve(featureName + ".jar");
             Path filePath = eclipseFeaturesPath.resolve(featureName);
-            Path jarPath = FileUtils.tryToDownloadFile(resolve, null, false);
-            FileUtils.extractJarToFolder(jarPath, filePath);
-            return filePath;
+            ArtifactChecksum checksum = getArtifactChecksum(FEATURE_CLASSIFIER, remoteP2Feature.getName(), remoteP2Feature.getVersion());
+            if (VerifiedArtifacts.isValid(filePath, checksum)) {
+                return filePath;
+            }
+            VerifiedArtifacts.remove(filePath);
+            return extractArtifact(FEATURES_FOLDER + featureName + ".jar", filePath, checksum) ? filePath : null;
         } catch (URISyntaxException | IOException e) {
             log.error("Error resolving the artifact", e);
             return null;
         }
     }
 
-
-    @Override
-    public void init(P2BundleLookupCache cache, ContentParserXmlExtension extension) throws RepositoryInitialisationError {
-        Path compositeJar, compositeXML;
-        compositeJar = fileCache.lookInRepositoryCache("compositeArtifacts.jar");
-        compositeXML = fileCache.lookInRepositoryCache("compositeArtifacts.xml");
-        try {
-            if (compositeJar == null && compositeXML == null) {
-                URI compositeArtifactJarURI = url.toURI().resolve("compositeArtifacts.jar");
-                URI compositeArtifactJarXML = url.toURI().resolve("compositeArtifacts.xml");
-                compositeJar = FileUtils.tryToDownloadFile(compositeArtifactJarURI, fileCache.getCacheFilePath("compositeArtifacts.jar"), true);
-                compositeXML = FileUtils.tryToDownloadFile(compositeArtifactJarXML, fileCache.getCacheFilePath("compositeArtifacts.xml"), true);
-            }
-            if (compositeJar != null) {
-                Path path = FileUtils.extractConfigFromJar(compositeJar, "compositeArtifacts.xml");
-                List<String> childrenURLs = IndexFileParser.INSTANCE.listChildrenRepositoriesFromFile(path.toFile());
-                for (String childrenURL : childrenURLs) {
-                    RemoteP2Repository childP2repository = new RemoteP2Repository(url.toURI().resolve(childrenURL + "/").toURL());
-                    subRepositories.add(childP2repository);
-                    log.info("Indexing " + childP2repository.getName() + " sub repository...");
-                    childP2repository.init(cache, extension);
-                }
-            } else if (compositeXML != null) {
-                List<String> childrenURLs = IndexFileParser.INSTANCE.listChildrenRepositoriesFromFile(compositeXML.toFile());
-                for (String childrenURL : childrenURLs) {
-                    RemoteP2Repository childP2repository = new RemoteP2Repository(url.toURI().resolve(childrenURL + "/").toURL());
-                    subRepositories.add(childP2repository);
-                    childP2repository.init(cache, extension);
-                }
-            } else {
-                loadArtifacts(cache, extension);
+    /**
+     * Extracts the artifact jar into the folder. The jar is kept in the artifact store,
+     * without the store it is extracted while it is downloaded.
+     */
+    private boolean extractArtifact(
+        @NotNull String artifactPath,
+        @NotNull Path folder,
+        @Nullable ArtifactChecksum checksum
+    ) throws IOException, URISyntaxException {
+        ArtifactStore artifactStore = getArtifactStore(checksum);
+        if (artifactStore != null) {
+            Path storedFile = artifactStore.obtain(artifactPath, checksum, it -> downloadFile(artifactPath, it, checksum));
+            if (storedFile == null || !FileUtils.extractJarToFolder(storedFile, folder)) {
+                return false;
             }
-        } catch (Exception exception) {
-            throw new RepositoryInitialisationError("Error during" + getName() + " repository initialisation", exception);
+        } else if (downloadArtifact(artifactPath, location -> FileUtils.tryToDownloadAndExtract(location, folder, checksum)) == null) {
+            return false;
         }
+        recordChecksum(folder, checksum);
+        return true;
     }
-    private class RepositoryCache {
-
-        private final Path repositoryCache;
-
-        private RepositoryCache() {
-            Path eclipsePath = PathsManager.INSTANCE.getEclipsePath();
-            Path repositoryCache = eclipsePath.resolve("repositories")
-                .resolve(
-                    url.toString().replace('/', '_')
-                        .replace("https:", "")
-                        .replace("http:", "") + "/"
-                );
-            if (!repositoryCache.toFile().exists()) {
-                repositoryCache.toFile().mkdirs();
-            }
-            this.repositoryCache = repositoryCache;
+
+    /**
+     * @return shared store or null if it is disabled or the artifact can't be addressed without a checksum
+     */
+    @Nullable
+    private static ArtifactStore getArtifactStore(@Nullable ArtifactChecksum checksum) {
+        return checksum == null ? null : P2RepositoryManager.INSTANCE.getArtifactStore();
+    }
+
+    /**
+     * @return downloaded file or null if no location has the artifact
+     */
+    @Nullable
+    private Path downloadFile(
+        @NotNull String artifactPath,
+        @NotNull Path file,
+        @Nullable ArtifactChecksum checksum
+    ) throws URISyntaxException {
+        return downloadArtifact(artifactPath, location -> FileUtils.tryToDownloadFile(location, file, false, checksum));
+    }
+
+    /**
+     * Downloads the artifact from the fastest mirror, the next locations are tried if it fails.
+     * Mirrors that failed are dropped only once a later location delivers the artifact, so an artifact
+     * missing everywhere does not disable healthy mirrors. A file not matching the checksum counts as a failure.
+     *
+     * @param download downloads the artifact from the given URI, returns null on failure
+     * @return result of the successful download or null if no location has the artifact
+     */
+    @Nullable
+    private Path downloadArtifact(@NotNull String artifactPath, @NotNull Function<URI, Path> download) throws URISyntaxException {
+        MirrorSelector mirrorSelector = getMirrorSelector();
+        if (mirrorSelector == null) {
+            return download.apply(url.toURI().resolve(artifactPath));
         }
-        private Path lookInRepositoryCache(String filename) {
-            try {
-                File file = getCacheFilePath(filename).toFile();
-                if (file.exists()) {
-                    if (isValidCacheFile(file)) {
-                        return file.toPath();
-                    } else {
-                        file.delete();
-                    }
+        List<URI> failedMirrors = new ArrayList<>();
+        for (URI location : mirrorSelector.getLocations()) {
+            Path downloaded = download.apply(location.resolve(artifactPath));
+            if (downloaded != null) {
+                for (URI mirror : failedMirrors) {
+                    mirrorSelector.reportFailure(mirror);
                 }
-            } catch (IOException exception) {
-                log.warn("Error during accessing cache file, file will not be used", exception);
-                return null;
+                return downloaded;
+            }
+            if (!mirrorSelector.isOrigin(location)) {
+                failedMirrors.add(location);
             }
-            return null;
-        }
-
-        private Path getCacheFilePath(String filename) {
-            return repositoryCache.resolve(filename);
         }
+        return null;
+    }
 
-        private static boolean isValidCacheFile(File file) throws IOException {
-            FileTime fileTime = Files.readAttributes(file.toPath(), BasicFileAttributes.class).lastModifiedTime();
-            Instant fileInstant = fileTime.toInstant();
-            return Instant.now().minusSeconds(60 * 60).getEpochSecond() <= fileInstant.getEpochSecond();
+    private static void recordChecksum(@NotNull Path artifact, @Nullable ArtifactChecksum checksum) {
+        if (checksum != null) {
+            VerifiedArtifacts.record(artifact, checksum);
         }
     }
 
-    private void loadArtifacts(P2BundleLookupCache cache, ContentParserXmlExtension extension) throws RepositoryInitialisationError {
-        try {
-            Path artifactsIndexPath = fileCache.lookInRepositoryCache("artifacts.jar");
-            if (artifactsIndexPath == null) {
-                URI artifactsURI = url.toURI().resolve("artifacts.jar");
-                artifactsIndexPath = FileUtils.tryToDownloadFile(artifactsURI, fileCache.getCacheFilePath("artifacts.jar"), true);
-            }
-            if (artifactsIndexPath != null) {
-                indexArtifacts(artifactsIndexPath);
-            }
-            Path contentPath = fileCache.lookInRepositoryCache("content.jar");
-            if (contentPath == null) {
-                URI contentsURI = url.toURI().resolve("content.jar");
-                contentPath = FileUtils.tryToDownloadFile(contentsURI, fileCache.getCacheFilePath("content.jar"), true);
-            }
-            if (contentPath != null) {
-                Path contentsXMl = FileUtils.extractConfigFromJar(contentPath, "content.xml");
-                ContentFileHandler.indexContent(this, contentsXMl.toFile(), cache, extension);
-                log.info("Repository " + getName() + " indexed, " +
-                    (remoteP2BundleInfoSet.size() + remoteP2FeatureSet.size()) + " artifacts found");
+    /**
+     * @return mirror selector or null if the repository has no mirrors or they are disabled
+     */
+    @Nullable
+    private MirrorSelector getMirrorSelector() throws URISyntaxException {
+        if (!P2RepositoryManager.INSTANCE.isMirrorsEnabled()) {
+            return null;
+        }
+        synchronized (this) {
+            if (!mirrorsResolved) {
+                mirrorsResolved = true;
+                String probeFile = getArtifactsFileName();
+                String mirrorsURL = null;
+                try {
+                    mirrorsURL = getArtifactsProperty(MIRRORS_URL_PROPERTY);
+                } catch (IOException | XMLStreamException e) {
+                    log.warn("Cannot read mirrors URL of " + getName(), e);
+                }
+                if (mirrorsURL != null && probeFile != null) {
+                    mirrorSelector = new MirrorSelector(url.toURI(), mirrorsURL, probeFile);
+                }
             }
-        } catch (Exception e) {
-            throw new RepositoryInitialisationError("Error during repository indexing", e);
+            return mirrorSelector;
         }
     }
 
-    public void addRemoteBundles(Collection<RemoteP2BundleInfo> remoteBundles) {
-        remoteP2BundleInfoSet.addAll(remoteBundles);
+    @Nullable
+    @Override
+    protected Path fetchMetadataFile(@NotNull String filename) throws URISyntaxException {
+        return fileCache.fetch(filename);
     }
 
-    public void addRemoteFeatures(Collection<RemoteP2Feature> features) {
-        remoteP2FeatureSet.addAll(features);
+    @NotNull
+    @Override
+    protected String getMetadataChecksum(@NotNull String filename) throws IOException {
+        return fileCache.getChecksum(filename);
     }
 
-    private void indexArtifacts(Path artifactJar) throws IOException, SAXException, RepositoryInitialisationError {
-        Path path = FileUtils.extractConfigFromJar(artifactJar, "artifacts.xml");
-        indexedArtifacts = IndexFileParser.INSTANCE.listArtifactsFromIndexFile(path.toFile());
+    @NotNull
+    @Override
+    protected Path getIndexSnapshotPath() {
+        return fileCache.getCacheFilePath(INDEX_SNAPSHOT_FILE);
     }
 }
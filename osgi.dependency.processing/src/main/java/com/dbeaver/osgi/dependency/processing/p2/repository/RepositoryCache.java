@@ -0,0 +1,226 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.PathsManager;
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import com.dbeaver.osgi.dependency.processing.util.HttpTransport;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Properties;
+
+/**
+ * Local copy of repository metadata files.
+ * <p>
+ * Every file is stored together with a small properties sidecar holding the HTTP validators
+ * (ETag/Last-Modified) and the content checksum, so a cached file can be revalidated with a conditional
+ * request instead of being downloaded again.
+ */
+class RepositoryCache {
+    private static final Logger log = LoggerFactory.getLogger(RepositoryCache.class);
+
+    private static final String METADATA_SUFFIX = ".cache-info";
+    private static final String ETAG_PROPERTY = "etag";
+    private static final String LAST_MODIFIED_PROPERTY = "last-modified";
+    private static final String CHECKSUM_PROPERTY = "sha-256";
+    // Files without validators can't be revalidated, they are trusted for a limited time
+    private static final long UNVALIDATED_FILE_TTL_SECONDS = 60 * 60;
+
+    private final URL url;
+    private final Path repositoryCache;
+
+    RepositoryCache(@NotNull URL url) {
+        this.url = url;
+        Path eclipsePath = PathsManager.INSTANCE.getEclipsePath();
+        Path repositoryCache = eclipsePath.resolve("repositories")
+            .resolve(
+                url.toString().replace('/', '_')
+                    .replace("https:", "")
+                    .replace("http:", "")
+                    .replace("file:", "")
+                    .replace(':', '_') + "/"
+            );
+        if (!repositoryCache.toFile().exists()) {
+            repositoryCache.toFile().mkdirs();
+        }
+        this.repositoryCache = repositoryCache;
+    }
+
+    /**
+     * Returns the up-to-date local copy of the repository file, downloading it only if it was changed on the server.
+     *
+     * @return null if the repository has no such file
+     */
+    @Nullable
+    Path fetch(@NotNull String filename) throws URISyntaxException {
+        Path file = getCacheFilePath(filename);
+        boolean cached = Files.exists(file);
+        Properties metadata = cached ? readMetadata(filename) : new Properties();
+        String eTag = metadata.getProperty(ETAG_PROPERTY);
+        String lastModified = metadata.getProperty(LAST_MODIFIED_PROPERTY);
+        if (cached && eTag == null && lastModified == null && isFresh(file)) {
+            return file;
+        }
+        URI fileURI = url.toURI().resolve(filename);
+        HttpRequest.Builder request = HttpTransport.INSTANCE.newRequest(fileURI);
+        if (cached && eTag != null) {
+            request.header("If-None-Match", eTag);
+        }
+        if (cached && lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        try {
+            HttpResponse<InputStream> response = HttpTransport.INSTANCE.send(request.build());
+            try (InputStream inputStream = response.body()) {
+                int responseCode = response.statusCode();
+                if (cached && responseCode == HttpTransport.HTTP_NOT_MODIFIED) {
+                    log.debug(fileURI + " is not modified, cached copy will be used");
+                    return file;
+                }
+                if (responseCode != HttpTransport.HTTP_OK || !response.uri().equals(fileURI)) {
+                    invalidate(filename);
+                    return null;
+                }
+                Properties newMetadata = new Properties();
+                setIfPresent(newMetadata, ETAG_PROPERTY, response.headers().firstValue("ETag").orElse(null));
+                setIfPresent(newMetadata, LAST_MODIFIED_PROPERTY, response.headers().firstValue("Last-Modified").orElse(null));
+                newMetadata.setProperty(CHECKSUM_PROPERTY, download(inputStream, file));
+                writeMetadata(filename, newMetadata);
+                return file;
+            }
+        } catch (IOException e) {
+            if (cached) {
+                log.warn("Cannot revalidate " + fileURI + ", cached copy will be used", e);
+                return file;
+            }
+            log.debug("Cannot download " + fileURI, e);
+            return null;
+        }
+    }
+
+    /**
+     * SHA-256 of the cached file, taken from the sidecar when it is known.
+     */
+    @NotNull
+    String getChecksum(@NotNull String filename) throws IOException {
+        Properties metadata = readMetadata(filename);
+        String checksum = metadata.getProperty(CHECKSUM_PROPERTY);
+        if (checksum == null) {
+            checksum = FileUtils.computeChecksum(getCacheFilePath(filename));
+            metadata.setProperty(CHECKSUM_PROPERTY, checksum);
+            writeMetadata(filename, metadata);
+        }
+        return checksum;
+    }
+
+    @NotNull
+    Path getCacheFilePath(@NotNull String filename) {
+        return repositoryCache.resolve(filename);
+    }
+
+    @NotNull
+    private String download(@NotNull InputStream inputStream, @NotNull Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not supported", e);
+        }
+        Path tempFile = Files.createTempFile(repositoryCache, file.getFileName().toString(), ".tmp");
+        try {
+            try (InputStream digestStream = new DigestInputStream(inputStream, digest);
+                 OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                digestStream.transferTo(outputStream);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void invalidate(@NotNull String filename) {
+        try {
+            Files.deleteIfExists(getCacheFilePath(filename));
+            Files.deleteIfExists(getMetadataPath(filename));
+        } catch (IOException e) {
+            log.warn("Cannot remove outdated cache file " + filename, e);
+        }
+    }
+
+    @NotNull
+    private Properties readMetadata(@NotNull String filename) {
+        Path metadataPath = getMetadataPath(filename);
+        if (Files.exists(metadataPath)) {
+            try {
+                return FileUtils.readPropertiesFile(metadataPath);
+            } catch (IOException e) {
+                log.warn("Cannot read cache metadata of " + filename + ", file will be revalidated", e);
+            }
+        }
+        return new Properties();
+    }
+
+    private void writeMetadata(@NotNull String filename, @NotNull Properties metadata) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(getMetadataPath(filename))) {
+            metadata.store(outputStream, null);
+        }
+    }
+
+    @NotNull
+    private Path getMetadataPath(@NotNull String filename) {
+        return repositoryCache.resolve(filename + METADATA_SUFFIX);
+    }
+
+    private static void setIfPresent(@NotNull Properties properties, @NotNull String key, @Nullable String value) {
+        if (value != null) {
+            properties.setProperty(key, value);
+        }
+    }
+
+    private static boolean isFresh(@NotNull Path file) {
+        try {
+            FileTime fileTime = Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime();
+            return Instant.now().minusSeconds(UNVALIDATED_FILE_TTL_SECONDS).isBefore(fileTime.toInstant());
+        } catch (IOException e) {
+            log.warn("Error during accessing cache file, file will not be used", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import com.dbeaver.osgi.dependency.processing.util.Version;
+import com.dbeaver.osgi.dependency.processing.util.VersionRange;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of an indexed repository, used to skip metadata parsing on warm starts.
+ * <p>
+ * A snapshot is only valid for the repository URL, metadata checksum and target environments it was written for.
+ * All strings are stored once in a string table and referenced by index.
+ */
+class RepositoryIndexSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(RepositoryIndexSnapshot.class);
+
+    private static final int MAGIC = 0x50324958; // P2IX
+    private static final int FORMAT_VERSION = 4;
+    private static final int NULL_REF = -1;
+
+    private static final byte FLAG_ZIPPED = 1;
+    private static final byte FLAG_START_LEVEL = 2;
+    private static final byte FLAG_FRAGMENT = 4;
+    private static final byte FLAG_INCLUDING_FIRST = 1;
+    private static final byte FLAG_INCLUDING_SECOND = 2;
+    private static final byte FLAG_NULL_RANGE = 4;
+
+    private RepositoryIndexSnapshot() {
+    }
+
+    static void save(
+        @NotNull Path snapshotPath,
+        @NotNull P2Repository repository,
+        @NotNull String checksum
+    ) {
+        StringTable strings = new StringTable();
+        IntList units = repository.getRemoteBundleUnits();
+        List<RemoteP2BundleInfo.RemoteBundleInfoBuilder> bundles = new ArrayList<>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            bundles.add(RemoteBundleStore.INSTANCE.createBuilder(units.get(i), -1));
+        }
+        Collection<RemoteP2Feature> features = repository.getRemoteFeatures();
+        for (RemoteP2BundleInfo.RemoteBundleInfoBuilder bundle : bundles) {
+            strings.register(bundle);
+        }
+        for (RemoteP2Feature feature : features) {
+            strings.add(feature.getName());
+            strings.add(feature.getVersion());
+        }
+        try {
+            Path tempPath = Files.createTempFile(snapshotPath.getParent(), "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writeString(out, repository.getName());
+                writeString(out, checksum);
+                out.writeInt(strings.values.size());
+                for (String value : strings.values) {
+                    writeString(out, value);
+                }
+                out.writeInt(bundles.size());
+                for (RemoteP2BundleInfo.RemoteBundleInfoBuilder bundle : bundles) {
+                    writeBundle(out, strings, bundle);
+                }
+                out.writeInt(features.size());
+                for (RemoteP2Feature feature : features) {
+                    out.writeInt(strings.indexOf(feature.getName()));
+                    out.writeInt(strings.indexOf(feature.getVersion()));
+                    out.writeInt(feature.getPlatforms());
+                }
+            }
+            Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.warn("Cannot save index snapshot of " + repository.getName(), e);
+        }
+    }
+
+    /**
+     * Loads the snapshot into the repository and the lookup cache.
+     *
+     * @return false if there is no snapshot for this repository state, the caller should index metadata then
+     */
+    static boolean load(
+        @NotNull Path snapshotPath,
+        @NotNull P2Repository repository,
+        @NotNull String checksum,
+        @NotNull P2BundleLookupCache cache
+    ) {
+        if (!Files.exists(snapshotPath)) {
+            return false;
+        }
+        List<RemoteP2BundleInfo.RemoteBundleInfoBuilder> bundles;
+        List<RemoteP2Feature> features;
+        try {
+            // Not mapped: a mapped file cannot be replaced on Windows until the mapping is collected, which breaks save()
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                || !repository.getName().equals(readString(buffer))
+                || !checksum.equals(readString(buffer))) {
+                return false;
+            }
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = SymbolTable.INSTANCE.intern(readString(buffer));
+            }
+            int bundleCount = buffer.getInt();
+            bundles = new ArrayList<>(bundleCount);
+            for (int i = 0; i < bundleCount; i++) {
+                bundles.add(readBundle(buffer, strings, repository));
+            }
+            int featureCount = buffer.getInt();
+            features = new ArrayList<>(featureCount);
+            for (int i = 0; i < featureCount; i++) {
+                features.add(new RemoteP2Feature(strings[buffer.getInt()], strings[buffer.getInt()], repository, buffer.getInt()));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Index snapshot of " + repository.getName() + " is corrupted and will be rebuilt", e);
+            return false;
+        }
+        IntList units = new IntList(bundles.size());
+        for (RemoteP2BundleInfo.RemoteBundleInfoBuilder bundle : bundles) {
+            int unit = RemoteBundleStore.INSTANCE.add(bundle);
+            cache.addRemoteBundle(unit);
+            units.add(unit);
+        }
+        for (RemoteP2Feature feature : features) {
+            cache.addRemoteFeature(feature);
+        }
+        repository.addRemoteBundles(units);
+        repository.addRemoteFeatures(features);
+        return true;
+    }
+
+    private static void writeBundle(
+        @NotNull DataOutputStream out,
+        @NotNull StringTable strings,
+        @NotNull RemoteP2BundleInfo.RemoteBundleInfoBuilder bundle
+    ) throws IOException {
+        out.writeInt(strings.indexOf(bundle.getBundleName()));
+        out.writeInt(strings.indexOf(bundle.getBundleVersion()));
+        out.writeInt(bundle.getPlatforms());
+        Integer startLevel = bundle.startLevel;
+        String fragmentHost = bundle.getFragmentHost();
+        byte flags = 0;
+        if (bundle.isZipped()) {
+            flags |= FLAG_ZIPPED;
+        }
+        if (startLevel != null) {
+            flags |= FLAG_START_LEVEL;
+        }
+        if (fragmentHost != null) {
+            flags |= FLAG_FRAGMENT;
+        }
+        out.writeByte(flags);
+        if (startLevel != null) {
+            out.writeInt(startLevel);
+        }
+        if (fragmentHost != null) {
+            out.writeInt(strings.indexOf(fragmentHost));
+        }
+        List<Pair<String, VersionRange>> requireBundles = bundle.getRequireBundles();
+        out.writeInt(requireBundles.size());
+        for (int i = 0; i < requireBundles.size(); i++) {
+            out.writeInt(strings.indexOf(requireBundles.get(i).getFirst()));
+            writeRange(out, strings, requireBundles.get(i).getSecond());
+            out.writeInt(bundle.getRequireBundlePlatforms(i));
+        }
+        out.writeInt(bundle.getExportPackages().size());
+        for (Pair<String, Version> exportPackage : bundle.getExportPackages()) {
+            out.writeInt(strings.indexOf(exportPackage.getFirst()));
+            out.writeInt(strings.indexOf(exportPackage.getSecond()));
+        }
+        out.writeInt(bundle.getReexportedBundles().size());
+        for (String reexportedBundle : bundle.getReexportedBundles()) {
+            out.writeInt(strings.indexOf(reexportedBundle));
+        }
+        out.writeInt(bundle.getImportPackages().size());
+        for (Pair<String, VersionRange> importPackage : bundle.getImportPackages()) {
+            out.writeInt(strings.indexOf(importPackage.getFirst()));
+            writeRange(out, strings, importPackage.getSecond());
+            out.writeInt(bundle.getImportPackagePlatforms(importPackage));
+        }
+    }
+
+    @NotNull
+    private static RemoteP2BundleInfo.RemoteBundleInfoBuilder readBundle(
+        @NotNull ByteBuffer buffer,
+        @NotNull String[] strings,
+        @NotNull P2Repository repository
+    ) {
+        RemoteP2BundleInfo.RemoteBundleInfoBuilder builder = new RemoteP2BundleInfo.RemoteBundleInfoBuilder()
+            .bundleName(strings[buffer.getInt()])
+            .version(strings[buffer.getInt()])
+            .repositoryURL(repository)
+            .setPlatforms(buffer.getInt());
+        byte flags = buffer.get();
+        builder.setZipped((flags & FLAG_ZIPPED) != 0);
+        if ((flags & FLAG_START_LEVEL) != 0) {
+            builder.setStartLevel(buffer.getInt());
+        }
+        if ((flags & FLAG_FRAGMENT) != 0) {
+            builder.setFragmentHost(strings[buffer.getInt()]);
+        }
+        int requireBundlesCount = buffer.getInt();
+        for (int i = 0; i < requireBundlesCount; i++) {
+            builder.addToRequiredBundles(strings[buffer.getInt()], readRange(buffer, strings), buffer.getInt());
+        }
+        int exportPackagesCount = buffer.getInt();
+        for (int i = 0; i < exportPackagesCount; i++) {
+            builder.addToExportPackage(strings[buffer.getInt()], readVersion(buffer, strings));
+        }
+        int reexportedBundlesCount = buffer.getInt();
+        for (int i = 0; i < reexportedBundlesCount; i++) {
+            builder.addReexportedBundle(strings[buffer.getInt()]);
+        }
+        int importPackagesCount = buffer.getInt();
+        for (int i = 0; i < importPackagesCount; i++) {
+            builder.addToRequiredPackages(strings[buffer.getInt()], readRange(buffer, strings), buffer.getInt());
+        }
+        return builder;
+    }
+
+    private static void writeRange(
+        @NotNull DataOutputStream out,
+        @NotNull StringTable strings,
+        @Nullable VersionRange range
+    ) throws IOException {
+        if (range == null) {
+            out.writeByte(FLAG_NULL_RANGE);
+            return;
+        }
+        byte flags = 0;
+        if (range.isIncludingFirst()) {
+            flags |= FLAG_INCLUDING_FIRST;
+        }
+        if (range.isIncludingSecond()) {
+            flags |= FLAG_INCLUDING_SECOND;
+        }
+        out.writeByte(flags);
+        out.writeInt(strings.indexOf(range.getFirst()));
+        out.writeInt(strings.indexOf(range.getSecond()));
+    }
+
+    @Nullable
+    private static VersionRange readRange(@NotNull ByteBuffer buffer, @NotNull String[] strings) {
+        byte flags = buffer.get();
+        if ((flags & FLAG_NULL_RANGE) != 0) {
+            return null;
+        }
+        Version first = readVersion(buffer, strings);
+        Version second = readVersion(buffer, strings);
+        return new VersionRange(first, second, (flags & FLAG_INCLUDING_FIRST) != 0, (flags & FLAG_INCLUDING_SECOND) != 0);
+    }
+
+    @Nullable
+    private static Version readVersion(@NotNull ByteBuffer buffer, @NotNull String[] strings) {
+        int ref = buffer.getInt();
+        return ref == NULL_REF ? null : new Version(strings[ref]);
+    }
+
+    private static void writeString(@NotNull DataOutputStream out, @NotNull String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NotNull
+    private static String readString(@NotNull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private void add(@Nullable String value) {
+            if (value != null && !indexes.containsKey(value)) {
+                indexes.put(value, values.size());
+                values.add(value);
+            }
+        }
+
+        private void add(@Nullable Version version) {
+            if (version != null) {
+                add(version.toString());
+            }
+        }
+
+        private void add(@Nullable VersionRange range) {
+            if (range != null) {
+                add(range.getFirst());
+                add(range.getSecond());
+            }
+        }
+
+        private void register(@NotNull RemoteP2BundleInfo.RemoteBundleInfoBuilder bundle) {
+            add(bundle.getBundleName());
+            add(bundle.getBundleVersion());
+            add(bundle.getFragmentHost());
+            for (Pair<String, VersionRange> requireBundle : bundle.getRequireBundles()) {
+                add(requireBundle.getFirst());
+                add(requireBundle.getSecond());
+            }
+            for (Pair<String, Version> exportPackage : bundle.getExportPackages()) {
+                add(exportPackage.getFirst());
+                add(exportPackage.getSecond());
+            }
+            for (String reexportedBundle : bundle.getReexportedBundles()) {
+                add(reexportedBundle);
+            }
+            for (Pair<String, VersionRange> importPackage : bundle.getImportPackages()) {
+                add(importPackage.getFirst());
+                add(importPackage.getSecond());
+            }
+        }
+
+        private int indexOf(@Nullable String value) {
+            return value == null ? NULL_REF : indexes.get(value);
+        }
+
+        private int indexOf(@Nullable Version version) {
+            return version == null ? NULL_REF : indexOf(version.toString());
+        }
+    }
+}
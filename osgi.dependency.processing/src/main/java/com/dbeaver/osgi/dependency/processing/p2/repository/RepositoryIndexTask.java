@@ -0,0 +1,99 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.repository.exception.RepositoryInitialisationError;
+import com.dbeaver.osgi.dependency.processing.xml.ContentParserXmlExtension;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Indexes (or refreshes) a single repository into its own lookup cache, so sibling repositories
+ * can be indexed concurrently and merged afterwards in declaration order.
+ */
+public class RepositoryIndexTask extends RecursiveAction {
+    private final IRepository<?> repository;
+    private final ContentParserXmlExtension extension;
+    private final boolean refresh;
+    private final P2BundleLookupCache cache = new P2BundleLookupCache();
+    private final P2BundleLookupCache staleCache = new P2BundleLookupCache();
+    private RepositoryInitialisationError error;
+
+    public RepositoryIndexTask(@NotNull IRepository<?> repository, @Nullable ContentParserXmlExtension extension) {
+        this(repository, extension, false);
+    }
+
+    public RepositoryIndexTask(
+        @NotNull IRepository<?> repository,
+        @Nullable ContentParserXmlExtension extension,
+        boolean refresh
+    ) {
+        this.repository = repository;
+        this.extension = extension;
+        this.refresh = refresh;
+    }
+
+    @Override
+    protected void compute() {
+        try {
+            if (refresh) {
+                repository.refresh(cache, staleCache, extension);
+            } else {
+                repository.init(cache, extension);
+            }
+        } catch (RepositoryInitialisationError e) {
+            error = e;
+        }
+    }
+
+    /**
+     * Runs all tasks in the current fork-join pool and merges their results into the target cache
+     * in the order of the task list. The first failure (in list order) is rethrown.
+     */
+    public static void indexAll(
+        @NotNull List<RepositoryIndexTask> tasks,
+        @NotNull P2BundleLookupCache target
+    ) throws RepositoryInitialisationError {
+        refreshAll(tasks, target, new P2BundleLookupCache());
+    }
+
+    /**
+     * Same as {@link #indexAll}, entries replaced by refreshed repositories are collected into the stale cache.
+     */
+    public static void refreshAll(
+        @NotNull List<RepositoryIndexTask> tasks,
+        @NotNull P2BundleLookupCache target,
+        @NotNull P2BundleLookupCache staleTarget
+    ) throws RepositoryInitialisationError {
+        ForkJoinTask.invokeAll(tasks);
+        for (RepositoryIndexTask task : tasks) {
+            if (task.error != null) {
+                throw task.error;
+            }
+        }
+        for (RepositoryIndexTask task : tasks) {
+            target.addAll(task.cache);
+            staleTarget.addAll(task.staleCache);
+        }
+    }
+}
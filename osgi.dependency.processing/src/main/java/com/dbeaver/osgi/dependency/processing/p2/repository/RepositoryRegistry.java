@@ -0,0 +1,151 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dbeaver.osgi.dependency.processing.p2.repository;
+
+import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import org.jkiss.code.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * All repositories of the session by normalized location.
+ * <p>
+ * A repository referenced by several composites (or listed several times in the settings) is created once
+ * and is indexed only by the first parent reaching it in the current indexing pass.
+ */
+public class RepositoryRegistry {
+    private static final Logger log = LoggerFactory.getLogger(RepositoryRegistry.class);
+
+    public static final RepositoryRegistry INSTANCE = new RepositoryRegistry();
+
+    private final Map<URI, P2Repository> repositories = new ConcurrentHashMap<>();
+    private final AtomicInteger pass = new AtomicInteger();
+
+    @NotNull
+    P2Repository getRepository(@NotNull URI location) throws MalformedURLException {
+        URI normalized = normalize(location);
+        P2Repository repository = repositories.get(normalized);
+        if (repository != null) {
+            return repository;
+        }
+        P2Repository newRepository;
+        if ("file".equals(normalized.getScheme())) {
+            newRepository = new LocalP2Repository(Path.of(normalized));
+        } else {
+            newRepository = new RemoteP2Repository(normalized.toURL());
+        }
+        repository = repositories.putIfAbsent(normalized, newRepository);
+        return repository == null ? newRepository : repository;
+    }
+
+    /**
+     * @return true if the repository was not indexed in the current pass yet, the caller has to index it then
+     */
+    boolean claim(@NotNull P2Repository repository) {
+        return repository.markVisited(pass.get());
+    }
+
+    /**
+     * Starts a new indexing pass, every repository can be claimed once again.
+     */
+    public void startPass() {
+        pass.incrementAndGet();
+    }
+
+    /**
+     * Forgets all repositories, the next indexing creates and indexes them from scratch.
+     */
+    public void clear() {
+        repositories.clear();
+    }
+
+    /**
+     * Forgets repositories no parent referenced in the current pass, their entries are added to the stale cache.
+     */
+    public void sweep(@NotNull P2BundleLookupCache staleCache) {
+        int currentPass = pass.get();
+        Iterator<P2Repository> iterator = repositories.values().iterator();
+        while (iterator.hasNext()) {
+            P2Repository repository = iterator.next();
+            if (repository.getVisitedPass() < currentPass) {
+                log.info("Repository " + repository.getName() + " is not referenced anymore");
+                repository.collectOwnEntries(staleCache);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the bundle store units no repository holds anymore, i.e. the ones of re-indexed and forgotten repositories.
+     * The lookup cache references the old unit ids and has to be rebuilt from the repositories afterwards.
+     */
+    public void compactBundleStore() {
+        BitSet liveUnits = new BitSet();
+        for (P2Repository repository : repositories.values()) {
+            IntList units = repository.getRemoteBundleUnits();
+            for (int i = 0; i < units.size(); i++) {
+                liveUnits.set(units.get(i));
+            }
+        }
+        if (liveUnits.cardinality() == RemoteBundleStore.INSTANCE.getUnitCount()) {
+            return;
+        }
+        int[] newUnits = RemoteBundleStore.INSTANCE.compact(liveUnits);
+        for (P2Repository repository : repositories.values()) {
+            repository.renumberRemoteBundles(newUnits);
+        }
+    }
+
+    /**
+     * Lower-cases scheme and host, drops default ports and fragments and makes the path a folder.
+     */
+    @NotNull
+    static URI normalize(@NotNull URI location) {
+        URI uri = location.normalize();
+        if (uri.getScheme() == null || uri.isOpaque()) {
+            return uri;
+        }
+        String scheme = uri.getScheme().toLowerCase(Locale.ENGLISH);
+        String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ENGLISH);
+        int port = uri.getPort();
+        if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+            port = -1;
+        }
+        String path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        if (!path.endsWith("/")) {
+            path += "/";
+        }
+        try {
+            return new URI(scheme, uri.getUserInfo(), host, port, path, uri.getQuery(), null);
+        } catch (URISyntaxException e) {
+            return uri;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.dbeaver.osgi.dependency.processing.PathsManager;
 import com.dbeaver.osgi.dependency.processing.Result;
 import com.dbeaver.osgi.dependency.processing.inter.IImportListener;
 import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.P2RepositoryManager;
 import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
 import com.dbeaver.osgi.dependency.processing.util.VersionRange;
 import jakarta.annotation.Nonnull;
@@ -60,7 +61,13 @@ public class DynamicImportsResolver {
         this.importListener = importListener;
     }
 
+    /**
+     * Runs after the plugin and feature resolution, the bundles they requested are downloaded before the plugins folder is read.
+     *
+     * @throws IOException if some of the requested bundles could not be downloaded
+     */
     public void start(@Nonnull Result result, P2BundleLookupCache lookupCache, DependencyGraph graph) throws IOException {
+        awaitDownloads();
         var eclipsePluginsByExportedPackages = readEclipsePluginsExportedPackages(PathsManager.INSTANCE.getEclipsePluginsPath());
 
         MultiValuedMap<String, Pair<BundleInfo, Version>> parsedBundlesByExportedPackages = new ArrayListValuedHashMap<>();
@@ -107,6 +114,14 @@ public class DynamicImportsResolver {
         if (!unresolvedPackagesMsg.isEmpty()) {
             log.debug("Couldn't resolve packages:\n{}", unresolvedPackagesMsg);
         }
+        // Bundles added for the imports are still downloading
+        awaitDownloads();
+    }
+
+    private static void awaitDownloads() throws IOException {
+        if (!P2RepositoryManager.INSTANCE.awaitDownloads()) {
+            throw new IOException("Some of the required bundles could not be downloaded");
+        }
     }
 
     private void resolveImportPackages(
@@ -224,7 +239,8 @@ public class DynamicImportsResolver {
         var result = new ArrayListValuedHashMap<String, Pair<BundleInfo, Version>>();
 
         for (var folderOrJar : children) {
-            if (".DS_Store".equals(folderOrJar.getName())) {
+            // .DS_Store and staging folders of extractions in progress
+            if (folderOrJar.getName().startsWith(".")) {
                 continue;
             }
             BundleInfo bundleInfo;
@@ -19,6 +19,7 @@ package com.dbeaver.osgi.dependency.processing.resolvers;
 import com.dbeaver.osgi.dependency.processing.BundleInfo;
 import com.dbeaver.osgi.dependency.processing.BundleInfoBuilder;
 import com.dbeaver.osgi.dependency.processing.util.DependencyInformation;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
 import com.dbeaver.osgi.dependency.processing.util.Version;
 import com.dbeaver.osgi.dependency.processing.util.VersionRange;
 import jakarta.annotation.Nonnull;
@@ -110,7 +111,7 @@ public class ManifestParser {
             range = VersionRange.fromString(group);
         }
         String name = trimBundleName(attributes.getValue("Fragment-Host"));
-        return new Pair<>(name, range);
+        return SymbolTable.INSTANCE.internPair(name, SymbolTable.INSTANCE.internRange(range));
     }
 
     @NotNull
@@ -135,8 +136,8 @@ public class ManifestParser {
     }
 
     public static @Nonnull String trimBundleName(@Nonnull String bundleName) {
-        return StringUtils.substringBefore(bundleName, ";")
-            .trim();
+        return SymbolTable.INSTANCE.intern(StringUtils.substringBefore(bundleName, ";")
+            .trim());
     }
 
     public static DependencyInformation convertToDependencyInformation(String bundleInfoString, boolean isExport) {
@@ -155,10 +156,10 @@ public class ManifestParser {
     }
 
     public static Pair<String, VersionRange> convertDependencyInformationToVersionRangePair(DependencyInformation information) {
-        return new Pair<>(information.name(), information.range());
+        return SymbolTable.INSTANCE.internPair(information.name(), SymbolTable.INSTANCE.internRange(information.range()));
     }
     public static Pair<String, Version> convertDependencyInformationToVersionPair(DependencyInformation information) {
-        return new Pair<>(information.name(), information.version());
+        return SymbolTable.INSTANCE.internPair(information.name(), SymbolTable.INSTANCE.internVersion(information.version()));
     }
 
     public static @Nonnull List<String> parseBundleClasspath(@Nonnull Attributes attrs) {
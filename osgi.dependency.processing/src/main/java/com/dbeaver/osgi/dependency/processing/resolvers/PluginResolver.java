@@ -48,6 +48,10 @@ public class PluginResolver {
     private static final Map<String, String> correctedFolderNames = Map.of(
     );
 
+    /**
+     * Remote bundles are added to the result from metadata and downloaded in background,
+     * call {@link P2RepositoryManager#awaitDownloads()} before the plugins folder is read.
+     */
     public static void resolvePluginDependencies(
         @Nonnull Result result,
         @Nonnull Pair<String, VersionRange> bundleInfo,
@@ -104,7 +108,7 @@ public class PluginResolver {
         if (bundleInfos.size() == 1) {
             Optional<RemoteP2BundleInfo> maxVersionRemoteBundle = BundleUtils.getMaxVersionRemoteBundle(bundleInfo, cache);
             if (maxVersionRemoteBundle.isPresent() && BundleUtils.isRemoteBundleVersionGreater(maxVersionRemoteBundle.get(), bundleInfos.get(0))) {
-                maxVersionRemoteBundle.get().resolveBundle();
+                maxVersionRemoteBundle.get().requestDownload();
                     parseBundleInfo(result, maxVersionRemoteBundle.get(), cache, graph);
             } else {
                     parseBundleInfo(result, bundleInfos.get(0), cache, graph);
@@ -114,7 +118,7 @@ public class PluginResolver {
             if (remoteP2BundleInfos.isEmpty()) {
                 log.error("Couldn't find plugin '{}'", bundleInfo);
             } else {
-                remoteP2BundleInfos.stream().findFirst().get().resolveBundle();
+                remoteP2BundleInfos.stream().findFirst().get().requestDownload();
                 parseBundleInfo(result, remoteP2BundleInfos.stream().findFirst().get(), cache, graph);
             }
 
@@ -157,6 +161,9 @@ public class PluginResolver {
         }
     }
 
+    /**
+     * Remote test libraries are downloaded in background like in {@link #resolvePluginDependencies}.
+     */
     public static void resolveTestBundlesAndLibraries(Result result, DependencyGraph graph) throws IOException {
         PathsManager manager = PathsManager.INSTANCE;
         P2BundleLookupCache lookupCache = P2RepositoryManager.INSTANCE.getLookupCache();
@@ -191,7 +198,7 @@ public class PluginResolver {
                             testLibrary);
                         Optional<RemoteP2BundleInfo> remoteP2BundleInfo = remoteBundlesByName.stream().findFirst();
                         if (remoteP2BundleInfo.isPresent()) {
-                            remoteP2BundleInfo.get().resolveBundle();
+                            remoteP2BundleInfo.get().requestDownload();
                             bundleByName.add(remoteP2BundleInfo.get());
                             for (BundleInfo bundleInfo : bundleByName) {
                                 result.addBundle(bundleInfo);
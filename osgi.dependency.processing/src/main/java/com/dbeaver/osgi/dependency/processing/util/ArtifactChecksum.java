@@ -0,0 +1,77 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import org.jkiss.code.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Digest of an artifact as published in the repository artifacts metadata.
+ *
+ * @param algorithm {@link MessageDigest} algorithm name
+ * @param value     hex encoded digest
+ */
+public record ArtifactChecksum(@NotNull String algorithm, @NotNull String value) {
+
+    @NotNull
+    public MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(algorithm + " is not supported", e);
+        }
+    }
+
+    /**
+     * @param digest digest of the whole content, it is reset by the call
+     * @throws IOException if the content does not match
+     */
+    public void verify(@NotNull MessageDigest digest, @NotNull Object source) throws IOException {
+        String actual = HexFormat.of().formatHex(digest.digest());
+        if (!actual.equalsIgnoreCase(value)) {
+            throw new IOException(algorithm + " checksum of " + source + " is " + actual + ", expected " + value);
+        }
+    }
+
+    public boolean matches(@NotNull Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file);
+        return HexFormat.of().formatHex(digest.digest()).equalsIgnoreCase(value);
+    }
+
+    public static void update(@NotNull MessageDigest digest, @NotNull Path file) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + value;
+    }
+}
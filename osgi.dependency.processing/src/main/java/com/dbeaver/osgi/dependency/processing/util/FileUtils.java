@@ -19,22 +19,35 @@ package com.dbeaver.osgi.dependency.processing.util;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import org.apache.commons.lang3.StringUtils;
-import org.jkiss.code.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.tukaani.xz.XZInputStream;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -44,7 +57,8 @@ public class FileUtils {
 
     private static final String NAME_AND_VERSION_SEPARATOR = "_";
 
-    private static final Object lockObject = new String();
+    // Guards of the targets being replaced, see lockTarget
+    private static final Map<Path, TargetGuard> targetGuards = new ConcurrentHashMap<>();
     private static final Map<File, File[]> folderContents = new HashMap<>();
     public static final Set<String> preferOlderBundles = Set.of(
 //        "com.google.guava",
@@ -75,6 +89,10 @@ public class FileUtils {
         List<File> files = new ArrayList<>();
         for (File file : fileList) {
             String name = file.getName();
+            // Partial downloads and other hidden files of the workspace
+            if (name.startsWith(".")) {
+                continue;
+            }
             var candidatePackageName = name;
             int divPos = candidatePackageName.lastIndexOf(NAME_AND_VERSION_SEPARATOR);
             if (divPos != -1 && Character.isDigit(candidatePackageName.charAt(divPos + 1))) {
@@ -191,88 +209,390 @@ public class FileUtils {
         }
     }
 
-    public static Path extractConfigFromJar(Path artifactJar, String config) throws IOException {
-        try (JarFile jarFile = new JarFile(artifactJar.toFile())) {
+    /**
+     * Opens a single entry of the jar for streaming, the jar itself is closed together with the returned stream.
+     */
+    @Nonnull
+    public static InputStream openConfigFromJar(@Nonnull Path artifactJar, @Nonnull String config) throws IOException {
+        JarFile jarFile = new JarFile(artifactJar.toFile());
+        try {
             JarEntry jarEntry = jarFile.getJarEntry(config);
-            try (InputStream inputStream = jarFile.getInputStream(jarEntry)) {
-                Path configFile = Files.createTempFile("dbeaver", ".tmp");
-                configFile.toFile().deleteOnExit();
-                Files.copy(inputStream, configFile, StandardCopyOption.REPLACE_EXISTING);
-                return configFile;
+            if (jarEntry == null) {
+                throw new IOException("'" + config + "' not found in " + artifactJar);
             }
+            return new FilterInputStream(jarFile.getInputStream(jarEntry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        jarFile.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            jarFile.close();
+            throw e;
         }
     }
 
+    /**
+     * Opens p2 metadata stored as a jar, an xz archive or a plain xml file.
+     *
+     * @param xmlEntryName name of the xml inside the jar
+     */
+    @Nonnull
+    public static InputStream openMetadataFile(@Nonnull Path file, @Nonnull String xmlEntryName) throws IOException {
+        return openMetadataFile(file, xmlEntryName, false);
+    }
+
+    /**
+     * @param mapped read plain and xz files through memory mapping, suitable for files on local disks
+     */
+    @Nonnull
+    public static InputStream openMetadataFile(@Nonnull Path file, @Nonnull String xmlEntryName, boolean mapped) throws IOException {
+        String fileName = file.getFileName().toString();
+        if (fileName.endsWith(".jar")) {
+            return openConfigFromJar(file, xmlEntryName);
+        }
+        InputStream inputStream = mapped ? newMappedInputStream(file) : new BufferedInputStream(Files.newInputStream(file));
+        if (fileName.endsWith(".xz")) {
+            try {
+                return new XZInputStream(inputStream);
+            } catch (IOException e) {
+                inputStream.close();
+                throw e;
+            }
+        }
+        return inputStream;
+    }
+
+    /**
+     * Maps the whole file into memory, files over 2GB are read as a regular stream.
+     */
+    @Nonnull
+    public static InputStream newMappedInputStream(@Nonnull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return new BufferedInputStream(Files.newInputStream(file));
+            }
+            return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Whole content of the metadata file, compressed files are unpacked into memory.
+     * <p>
+     * The content is read into the heap rather than mapped: a mapping is only released by the garbage collector
+     * and keeps the file locked on Windows, so the cached copy could not be replaced on the next update.
+     */
+    @Nonnull
+    public static ByteBuffer readMetadataFile(@Nonnull Path file, @Nonnull String xmlEntryName) throws IOException {
+        String fileName = file.getFileName().toString();
+        if (!fileName.endsWith(".jar") && !fileName.endsWith(".xz")) {
+            return ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+        try (InputStream inputStream = openMetadataFile(file, xmlEntryName, false)) {
+            return ByteBuffer.wrap(inputStream.readAllBytes());
+        }
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer, the buffer position is moved.
+     */
+    @Nonnull
+    public static InputStream newInputStream(@Nonnull ByteBuffer buffer) {
+        return new ByteBufferInputStream(buffer);
+    }
+
+    /**
+     * Places the file to the target by hard link, the content is copied only if linking is not possible
+     * (e.g. the target is on another file system).
+     */
+    @Nonnull
+    public static Path linkOrCopy(@Nonnull Path source, @Nonnull Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        boolean replaceExisting = Files.exists(target);
+        Path tempPath = getTempSibling(target);
+        try {
+            Files.createLink(tempPath, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Cannot link " + source + ", file will be copied", e);
+            Files.copy(source, tempPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        publishFile(tempPath, target, replaceExisting);
+        return target;
+    }
+
+    /**
+     * Replaces the folder with the content of the jar, see {@link #extractToFolder}.
+     */
     public static boolean extractJarToFolder(Path jarPath, Path folderPath) throws IOException {
-        try (JarFile jarFile = new JarFile(jarPath.toFile())) {
-            Iterator<JarEntry> iterator = jarFile.entries().asIterator();
-            while (iterator.hasNext()) {
-                JarEntry entry = iterator.next();
-                Path childPath = folderPath.resolve(entry.getName());
-                if (entry.isDirectory()) {
-                    if (!childPath.toFile().exists()) {
-                        childPath.toFile().mkdirs();
-                    }
-                } else {
-                    try (InputStream inputStream = jarFile.getInputStream(entry)) {
-                        if (!childPath.toFile().exists()) {
-                            childPath.toFile().getParentFile().mkdirs();
-                        }
-                        Files.copy(inputStream, childPath, StandardCopyOption.REPLACE_EXISTING);
+        try (InputStream inputStream = Files.newInputStream(jarPath)) {
+            extractToFolder(inputStream, folderPath, null);
+        } catch (IOException e) {
+            log.error("Error during extracting " + jarPath);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Unpacks the zip stream into a staging folder next to the target and renames it into place,
+     * so the target is never seen half extracted. The previous content of the target is removed.
+     *
+     * @param beforeCommit called once all entries are written, e.g. to verify the stream checksum
+     */
+    public static void extractToFolder(
+        @Nonnull InputStream inputStream,
+        @Nonnull Path folderPath,
+        @Nullable StagingCheck beforeCommit
+    ) throws IOException {
+        Path parent = folderPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        boolean replaceExisting = Files.exists(folderPath);
+        // Hidden, the plugins folder is scanned for bundles
+        Path stagingPath = Files.createTempDirectory(parent, "." + folderPath.getFileName() + ".staging-");
+        try {
+            unzip(inputStream, stagingPath);
+            if (beforeCommit != null) {
+                beforeCommit.check();
+            }
+            if (replaceExisting) {
+                try (TargetLock ignored = lockTarget(folderPath)) {
+                    replaceFolder(stagingPath, folderPath);
+                }
+            } else {
+                try {
+                    Files.move(stagingPath, folderPath, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    if (!Files.isDirectory(folderPath)) {
+                        throw e;
                     }
+                    // Another writer extracted the same folder first
                 }
             }
-        } catch (Exception e) {
-            log.error("Error during opening jar file for " + jarPath);
+        } finally {
+            deleteFolder(stagingPath);
+        }
+    }
+
+    /**
+     * Extracts the zip while it is being downloaded, no archive is written to disk.
+     *
+     * @param checksum expected checksum of the archive, the folder is not replaced if it does not match
+     * @return folder or null if the file is absent or cannot be downloaded
+     */
+    @Nullable
+    public static Path tryToDownloadAndExtract(
+        @Nonnull URI fileURI,
+        @Nonnull Path folderPath,
+        @Nullable ArtifactChecksum checksum
+    ) {
+        try (InputStream remoteStream = openDownloadStream(fileURI)) {
+            if (remoteStream == null) {
+                return null;
+            }
+            MessageDigest digest = checksum == null ? null : checksum.newDigest();
+            InputStream stream = digest == null ? remoteStream : new DigestInputStream(remoteStream, digest);
+            extractToFolder(stream, folderPath, digest == null ? null : () -> {
+                // The central directory is not read by the zip stream but it is a part of the checksum
+                stream.transferTo(OutputStream.nullOutputStream());
+                checksum.verify(digest, fileURI);
+            });
+            return folderPath;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Cannot download " + fileURI, e);
+            return null;
+        }
+    }
+
+    private static void unzip(@Nonnull InputStream inputStream, @Nonnull Path folderPath) throws IOException {
+        // Not closed, the caller may read the rest of the stream
+        ZipInputStream zipStream = new ZipInputStream(inputStream);
+        Set<Path> createdFolders = new HashSet<>();
+        createdFolders.add(folderPath);
+        ZipEntry entry;
+        while ((entry = zipStream.getNextEntry()) != null) {
+            Path childPath = folderPath.resolve(entry.getName()).normalize();
+            if (!childPath.startsWith(folderPath)) {
+                throw new IOException("Entry '" + entry.getName() + "' is outside of the archive folder");
+            }
+            if (entry.isDirectory()) {
+                createFolder(childPath, createdFolders);
+            } else {
+                createFolder(childPath.getParent(), createdFolders);
+                Files.copy(zipStream, childPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void createFolder(@Nonnull Path folderPath, @Nonnull Set<Path> createdFolders) throws IOException {
+        if (createdFolders.add(folderPath)) {
+            Files.createDirectories(folderPath);
+        }
+    }
+
+    private static void replaceFolder(@Nonnull Path source, @Nonnull Path target) throws IOException {
+        if (!Files.exists(target)) {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        Path oldPath = target.resolveSibling("." + target.getFileName() + ".old-" + UUID.randomUUID());
+        Files.move(target, oldPath, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(oldPath, target, StandardCopyOption.ATOMIC_MOVE);
             throw e;
         }
-        return true;
+        deleteFolder(oldPath);
+    }
+
+    private static void deleteFolder(@Nonnull Path folderPath) throws IOException {
+        if (!Files.exists(folderPath)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(folderPath)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
     }
 
-    @org.jkiss.code.Nullable
-    public static Path tryToDownloadFile(@NotNull URI fileURI, @org.jkiss.code.Nullable Path path, boolean checkExisting)  {
+    /**
+     * Downloads the file with a single request, HTTP downloads are retried and resumed after failures.
+     *
+     * @param checkExisting whether a redirected response means the file is absent
+     * @return downloaded file or null if the file is absent or cannot be downloaded
+     */
+    @Nullable
+    public static Path tryToDownloadFile(@Nonnull URI fileURI, @Nullable Path path, boolean checkExisting)  {
+        return tryToDownloadFile(fileURI, path, checkExisting, null);
+    }
+
+    /**
+     * @param checksum expected checksum, a file that does not match it is not downloaded
+     */
+    @Nullable
+    public static Path tryToDownloadFile(
+        @Nonnull URI fileURI,
+        @Nullable Path path,
+        boolean checkExisting,
+        @Nullable ArtifactChecksum checksum
+    ) {
         try {
-            if (!checkExisting | tryToLoadFile(fileURI)) {
-                try (InputStream stream = fileURI.toURL().openStream()) {
-                    if (path == null) {
-                        path = Files.createTempFile("dbeaver", ".jar");
-                        path.toFile().deleteOnExit();
-                        Files.copy(stream, path, StandardCopyOption.REPLACE_EXISTING);
-                    } else {
-                        boolean directory = Files.isDirectory(path);
-                        Path tempPath;
-                        if (directory) {
-                            tempPath = Files.createTempDirectory(String.valueOf(path.getFileName()));
-                        } else {
-                            String fileName = path.getFileName().toString();
-                            tempPath = Files.createTempFile("dbeaver", fileName.substring(fileName.lastIndexOf(".")));
-                        }
-                        Files.copy(stream, tempPath, StandardCopyOption.REPLACE_EXISTING);
-                        // Yes this is a full lock, but I *really* don't want anything happening during copy to guarantee avoiding half-copy
-                        synchronized (lockObject){
-                            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
-                        }
+            if (HttpTransport.isHttp(fileURI)) {
+                Path target = path;
+                if (target == null) {
+                    target = Files.createTempFile("dbeaver", ".jar");
+                    target.toFile().deleteOnExit();
+                }
+                return ResumableDownload.download(fileURI, target, checkExisting, checksum);
+            }
+        } catch (IOException e) {
+            log.warn("Cannot download " + fileURI, e);
+            return null;
+        }
+        try (InputStream remoteStream = openRemoteFile(fileURI)) {
+            if (remoteStream == null) {
+                return null;
+            }
+            MessageDigest digest = checksum == null ? null : checksum.newDigest();
+            InputStream stream = digest == null ? remoteStream : new DigestInputStream(remoteStream, digest);
+            if (path == null) {
+                path = Files.createTempFile("dbeaver", ".jar");
+                path.toFile().deleteOnExit();
+                Files.copy(stream, path, StandardCopyOption.REPLACE_EXISTING);
+                if (digest != null) {
+                    checksum.verify(digest, fileURI);
+                }
+            } else {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                boolean replaceExisting = Files.exists(path);
+                // Written next to the target, so it is published by a rename on the same file system
+                Path tempPath = getTempSibling(path);
+                try {
+                    Files.copy(stream, tempPath);
+                    if (digest != null) {
+                        checksum.verify(digest, fileURI);
                     }
-                    return path;
+                    publishFile(tempPath, path, replaceExisting);
+                } finally {
+                    Files.deleteIfExists(tempPath);
                 }
             }
-        } catch (IOException | URISyntaxException e) {
+            return path;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Cannot download " + fileURI, e);
             return null;
         }
+    }
 
-        return null;
+    /**
+     * @return content stream or null if the file is absent
+     */
+    @Nullable
+    private static InputStream openDownloadStream(@Nonnull URI fileURI) throws IOException {
+        if (HttpTransport.isHttp(fileURI)) {
+            HttpResponse<InputStream> response = HttpTransport.INSTANCE.getTransfer(fileURI);
+            return response == null ? null : response.body();
+        }
+        return openRemoteFile(fileURI);
     }
 
-    public static boolean tryToLoadFile(@NotNull URI artifactsURI) throws IOException, URISyntaxException {
-        HttpURLConnection httpURLConnection = (HttpURLConnection) artifactsURI.toURL().openConnection();
-        boolean fileExist = httpURLConnection.getResponseCode() == HttpURLConnection.HTTP_OK;
-        httpURLConnection.connect();
+    /**
+     * @return content stream of a non-HTTP location or null if the file is absent
+     */
+    @Nullable
+    private static InputStream openRemoteFile(@Nonnull URI fileURI) throws IOException {
+        if ("file".equalsIgnoreCase(fileURI.getScheme())) {
+            Path file = Path.of(fileURI);
+            return Files.isRegularFile(file) ? Files.newInputStream(file) : null;
+        }
+        return fileURI.toURL().openStream();
+    }
+
+    @Nonnull
+    public static String computeChecksum(@Nonnull Path... files) throws IOException {
+        MessageDigest digest;
         try {
-            fileExist = fileExist & httpURLConnection.getURL().toURI().equals(artifactsURI);
-        } finally {
-            httpURLConnection.disconnect();
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not supported", e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        for (Path file : files) {
+            if (file == null) {
+                continue;
+            }
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public static boolean tryToLoadFile(@Nonnull URI artifactsURI) throws IOException, URISyntaxException {
+        if ("file".equalsIgnoreCase(artifactsURI.getScheme())) {
+            return Files.isRegularFile(Path.of(artifactsURI));
         }
-        return fileExist;
+        if (!HttpTransport.isHttp(artifactsURI)) {
+            try (InputStream ignored = artifactsURI.toURL().openStream()) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        HttpRequest request = HttpTransport.INSTANCE.newRequest(artifactsURI)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+        HttpResponse<InputStream> response = HttpTransport.INSTANCE.send(request);
+        response.body().close();
+        return response.statusCode() == HttpTransport.HTTP_OK && response.uri().equals(artifactsURI);
     }
 
 
@@ -296,6 +616,121 @@ public class FileUtils {
                 });
         }
     }
-}
 
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
 
+        private ByteBufferInputStream(@Nonnull ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] bytes, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Moves the finished file into place, the source is removed in any case.
+     * <p>
+     * A new target is published without locking: the file is linked to the target name, which fails if another
+     * writer published it in the meantime, so the first writer wins. Replacing an existing target
+     * holds the guard of the target, writers of other targets are not blocked.
+     *
+     * @return false if another writer published the target first
+     */
+    public static boolean publishFile(@Nonnull Path source, @Nonnull Path target, boolean replaceExisting) throws IOException {
+        try {
+            if (!replaceExisting) {
+                try {
+                    Files.createLink(target, source);
+                    return true;
+                } catch (FileAlreadyExistsException e) {
+                    return false;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // The file system has no hard links, the rename below is checked under the guard
+                    log.debug("Cannot link " + target + ", file will be moved", e);
+                }
+            }
+            try (TargetLock ignored = lockTarget(target)) {
+                if (!replaceExisting && Files.exists(target)) {
+                    return false;
+                }
+                try {
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return true;
+            }
+        } finally {
+            Files.deleteIfExists(source);
+        }
+    }
+
+    /**
+     * Excludes other writers of the same target in this process, writers of other targets are not blocked.
+     */
+    @Nonnull
+    public static TargetLock lockTarget(@Nonnull Path target) {
+        Path key = target.toAbsolutePath().normalize();
+        TargetGuard guard = targetGuards.compute(key, (path, current) -> {
+            TargetGuard result = current == null ? new TargetGuard() : current;
+            result.users++;
+            return result;
+        });
+        guard.lock.lock();
+        return () -> {
+            guard.lock.unlock();
+            // The guard is dropped with its last user, so the map only holds targets being written
+            targetGuards.computeIfPresent(key, (path, current) -> --current.users == 0 ? null : current);
+        };
+    }
+
+    @Nonnull
+    private static Path getTempSibling(@Nonnull Path target) {
+        // Hidden, the plugins folder is scanned for bundles
+        return target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    }
+
+    @FunctionalInterface
+    public interface StagingCheck {
+        void check() throws IOException;
+    }
+
+    public interface TargetLock extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class TargetGuard {
+        private final ReentrantLock lock = new ReentrantLock();
+        // Changed only inside map computations
+        private int users;
+    }
+}
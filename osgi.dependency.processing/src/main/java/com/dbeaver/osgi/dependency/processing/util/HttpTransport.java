@@ -0,0 +1,367 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import javax.net.ssl.SSLSession;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shared HTTP client of all repository requests.
+ * <p>
+ * Connections are kept alive and HTTP/2 streams are multiplexed where the server supports it,
+ * so TLS handshakes are paid once per host instead of once per artifact.
+ * <p>
+ * Artifact transfers to one host are limited, a transfer holds its permit until the response body is closed.
+ * The limit applies to the host of each request, so the mirrors of a repository have their own.
+ * Metadata requests are not limited: they are few, mostly small, and repository indexing runs them in parallel.
+ */
+public final class HttpTransport {
+    public static final int HTTP_OK = 200;
+    public static final int HTTP_NOT_MODIFIED = 304;
+    public static final int HTTP_NOT_FOUND = 404;
+    public static final int HTTP_GONE = 410;
+
+    // Declared before the instance, which reads them in its initializers
+    private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration DEFAULT_RESPONSE_TIMEOUT = Duration.ofSeconds(60);
+    // download.eclipse.org throttles clients opening many connections at once
+    public static final int DEFAULT_HOST_PARALLELISM = 2;
+
+    public static final HttpTransport INSTANCE = new HttpTransport();
+
+    private volatile HttpClient client;
+    private volatile Duration connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile Duration responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+    private volatile int hostParallelism = DEFAULT_HOST_PARALLELISM;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    private HttpTransport() {
+    }
+
+    /**
+     * @param connectTimeout  time to establish a connection
+     * @param responseTimeout time to receive the response headers, the body is not limited
+     */
+    public synchronized void setTimeouts(@NotNull Duration connectTimeout, @NotNull Duration responseTimeout) {
+        if (!connectTimeout.equals(this.connectTimeout)) {
+            // The connect timeout belongs to the client, pooled connections are dropped with the old one
+            this.client = null;
+        }
+        this.connectTimeout = connectTimeout;
+        this.responseTimeout = responseTimeout;
+    }
+
+    /**
+     * @param hostParallelism artifact transfers from the same host which may be in progress at once
+     */
+    public synchronized void setHostParallelism(int hostParallelism) {
+        if (hostParallelism != this.hostParallelism) {
+            this.hostParallelism = hostParallelism;
+            // Requests in progress return their permits to the old semaphores
+            hostPermits.clear();
+        }
+    }
+
+    @NotNull
+    public HttpRequest.Builder newRequest(@NotNull URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(responseTimeout).GET();
+    }
+
+    /**
+     * Sends the request, the caller has to close the response body.
+     */
+    @NotNull
+    public HttpResponse<InputStream> send(@NotNull HttpRequest request) throws IOException {
+        try {
+            return getClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + request.uri() + " was interrupted");
+        }
+    }
+
+    /**
+     * Sends an artifact transfer request within the host limit, the caller has to close the response body.
+     */
+    @NotNull
+    public HttpResponse<InputStream> sendTransfer(@NotNull HttpRequest request) throws IOException {
+        Semaphore permits = acquirePermit(request.uri());
+        try {
+            return new PermitResponse(getClient().send(request, HttpResponse.BodyHandlers.ofInputStream()), permits);
+        } catch (InterruptedException e) {
+            permits.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + request.uri() + " was interrupted");
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a GET request.
+     *
+     * @return response or null if the server does not have the resource
+     */
+    @Nullable
+    public HttpResponse<InputStream> get(@NotNull URI uri) throws IOException {
+        return checkFound(send(newRequest(uri).build()), uri);
+    }
+
+    /**
+     * Downloads an artifact within the host limit.
+     *
+     * @return response or null if the server does not have the artifact
+     */
+    @Nullable
+    public HttpResponse<InputStream> getTransfer(@NotNull URI uri) throws IOException {
+        return checkFound(sendTransfer(newRequest(uri).build()), uri);
+    }
+
+    @Nullable
+    private static HttpResponse<InputStream> checkFound(
+        @NotNull HttpResponse<InputStream> response,
+        @NotNull URI uri
+    ) throws IOException {
+        int statusCode = response.statusCode();
+        if (statusCode == HTTP_OK) {
+            return response;
+        }
+        response.body().close();
+        if (statusCode == HTTP_NOT_FOUND || statusCode == HTTP_GONE) {
+            return null;
+        }
+        throw new IOException("Unexpected response " + statusCode + " from " + uri);
+    }
+
+    /**
+     * Sends the request and repeats it if the response does not start within the hedge delay,
+     * the response that comes first is used and the other one is discarded.
+     * The request is not repeated if the host has no free permit, the repetition would wait behind the first one.
+     */
+    @NotNull
+    public HttpResponse<InputStream> sendHedged(@NotNull HttpRequest request, @NotNull Duration hedgeDelay) throws IOException {
+        HttpClient currentClient = getClient();
+        Semaphore permits = acquirePermit(request.uri());
+        CompletableFuture<HttpResponse<InputStream>> primary = sendAsync(currentClient, request, permits);
+        CompletableFuture<HttpResponse<InputStream>> hedge = null;
+        try {
+            try {
+                return primary.get(hedgeDelay.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!permits.tryAcquire()) {
+                    return primary.get();
+                }
+                hedge = sendAsync(currentClient, request, permits);
+                CompletableFuture<HttpResponse<InputStream>> winner = new CompletableFuture<>();
+                completeFirst(primary, hedge, winner);
+                completeFirst(hedge, primary, winner);
+                HttpResponse<InputStream> response = winner.get();
+                discard(response == primary.getNow(null) ? hedge : primary);
+                return response;
+            }
+        } catch (InterruptedException e) {
+            discard(primary);
+            if (hedge != null) {
+                discard(hedge);
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + request.uri() + " was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ioException ? ioException : new IOException("Request to " + request.uri() + " failed", cause);
+        }
+    }
+
+    /**
+     * Sends the request holding an acquired permit, which is released with the response body or on failure.
+     */
+    @NotNull
+    private static CompletableFuture<HttpResponse<InputStream>> sendAsync(
+        @NotNull HttpClient client,
+        @NotNull HttpRequest request,
+        @NotNull Semaphore permits
+    ) {
+        CompletableFuture<HttpResponse<InputStream>> response;
+        try {
+            response = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return response.handle((result, error) -> {
+            if (error != null) {
+                permits.release();
+                throw error instanceof CompletionException completion ? completion : new CompletionException(error);
+            }
+            return new PermitResponse(result, permits);
+        });
+    }
+
+    private static void completeFirst(
+        @NotNull CompletableFuture<HttpResponse<InputStream>> request,
+        @NotNull CompletableFuture<HttpResponse<InputStream>> other,
+        @NotNull CompletableFuture<HttpResponse<InputStream>> winner
+    ) {
+        request.whenComplete((response, error) -> {
+            if (error == null) {
+                winner.complete(response);
+            } else {
+                // A failed request only decides the result if the other one failed too
+                other.whenComplete((otherResponse, otherError) -> {
+                    if (otherError != null) {
+                        winner.completeExceptionally(error);
+                    }
+                });
+            }
+        });
+    }
+
+    private static void discard(@NotNull CompletableFuture<HttpResponse<InputStream>> request) {
+        // Closing the body aborts the exchange, cancelling the future does not
+        request.thenAccept(response -> {
+            try {
+                response.body().close();
+            } catch (IOException ignored) {
+                // the response is not used
+            }
+        });
+    }
+
+    @NotNull
+    private Semaphore acquirePermit(@NotNull URI uri) throws InterruptedIOException {
+        String host = uri.getHost();
+        Semaphore permits = hostPermits.computeIfAbsent(host == null ? "" : host, it -> new Semaphore(hostParallelism));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + uri + " was interrupted");
+        }
+        return permits;
+    }
+
+    public static boolean isHttp(@NotNull URI uri) {
+        return "http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme());
+    }
+
+    @NotNull
+    private HttpClient getClient() {
+        HttpClient currentClient = client;
+        if (currentClient == null) {
+            synchronized (this) {
+                currentClient = client;
+                if (currentClient == null) {
+                    currentClient = HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .connectTimeout(connectTimeout)
+                        .build();
+                    client = currentClient;
+                }
+            }
+        }
+        return currentClient;
+    }
+
+    /**
+     * Response which returns the host permit when its body is closed.
+     */
+    private static final class PermitResponse implements HttpResponse<InputStream> {
+        private final HttpResponse<InputStream> response;
+        private final InputStream body;
+
+        private PermitResponse(@NotNull HttpResponse<InputStream> response, @NotNull Semaphore permits) {
+            this.response = response;
+            AtomicBoolean released = new AtomicBoolean();
+            this.body = new FilterInputStream(response.body()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (released.compareAndSet(false, true)) {
+                            permits.release();
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public int statusCode() {
+            return response.statusCode();
+        }
+
+        @Override
+        public HttpRequest request() {
+            return response.request();
+        }
+
+        @Override
+        public Optional<HttpResponse<InputStream>> previousResponse() {
+            return response.previousResponse();
+        }
+
+        @Override
+        public HttpHeaders headers() {
+            return response.headers();
+        }
+
+        @Override
+        public InputStream body() {
+            return body;
+        }
+
+        @Override
+        public Optional<SSLSession> sslSession() {
+            return response.sslSession();
+        }
+
+        @Override
+        public URI uri() {
+            return response.uri();
+        }
+
+        @Override
+        public HttpClient.Version version() {
+            return response.version();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * HTTP download that survives interruptions.
+ * <p>
+ * The content is written to {@code .<target>.part}, the sidecar {@code .<target>.part-state} remembers the URL and
+ * the validator of the response. Both are hidden, as the plugins folder is scanned for bundles by name.
+ * A failed attempt, or the next run, continues with a {@code Range} request guarded by {@code If-Range},
+ * so a changed file is downloaded from the start again.
+ * <p>
+ * With a known checksum the content is digested while it is written, a resumed part is digested first.
+ * A mismatching download is discarded and started over by the next attempt.
+ */
+final class ResumableDownload {
+    private static final Logger log = LoggerFactory.getLogger(ResumableDownload.class);
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part-state";
+    private static final String URL_PROPERTY = "url";
+    private static final String VALIDATOR_PROPERTY = "validator";
+    private static final String LENGTH_PROPERTY = "length";
+
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 8_000;
+    // Most artifacts start to arrive much sooner, a response slower than that is likely a straggler
+    private static final Duration HEDGE_DELAY = Duration.ofSeconds(5);
+
+    private final URI uri;
+    private final Path target;
+    private final Path partPath;
+    private final Path statePath;
+    private final boolean checkRedirect;
+    private final ArtifactChecksum checksum;
+
+    private ResumableDownload(@NotNull URI uri, @NotNull Path target, boolean checkRedirect, @Nullable ArtifactChecksum checksum) {
+        this.uri = uri;
+        this.target = target;
+        this.partPath = target.resolveSibling("." + target.getFileName() + PART_SUFFIX);
+        this.statePath = target.resolveSibling("." + target.getFileName() + STATE_SUFFIX);
+        this.checkRedirect = checkRedirect;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @param checkRedirect whether a redirected response means the file is absent
+     * @param checksum      expected checksum of the file or null if it is unknown
+     * @return target or null if the server does not have the file
+     * @throws IOException if the download failed after all attempts
+     */
+    @Nullable
+    static Path download(
+        @NotNull URI uri,
+        @NotNull Path target,
+        boolean checkRedirect,
+        @Nullable ArtifactChecksum checksum
+    ) throws IOException {
+        return new ResumableDownload(uri, target, checkRedirect, checksum).run();
+    }
+
+    @Nullable
+    private Path run() throws IOException {
+        Files.createDirectories(target.getParent());
+        boolean existed = Files.exists(target);
+        // The part belongs to the target, so concurrent writers of the same target take turns
+        try (FileUtils.TargetLock ignored = FileUtils.lockTarget(target)) {
+            if (!existed && Files.exists(target)) {
+                // Published by the writer we waited for
+                return target;
+            }
+            return transferWithRetries();
+        }
+    }
+
+    @Nullable
+    private Path transferWithRetries() throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                sleep(getBackoffMillis(attempt));
+            }
+            try {
+                if (!transfer()) {
+                    discardPart();
+                    return null;
+                }
+                moveToTarget();
+                Files.deleteIfExists(statePath);
+                return target;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+                log.debug("Download attempt " + (attempt + 1) + " of " + uri + " failed", e);
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * @return false if the file is absent
+     */
+    private boolean transfer() throws IOException {
+        long offset = getResumeOffset();
+        Properties state = offset > 0 ? FileUtils.readPropertiesFile(statePath) : new Properties();
+        HttpRequest.Builder request = HttpTransport.INSTANCE.newRequest(uri);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", state.getProperty(VALIDATOR_PROPERTY));
+        }
+        HttpResponse<InputStream> response = HttpTransport.INSTANCE.sendHedged(request.build(), HEDGE_DELAY);
+        try (InputStream inputStream = response.body()) {
+            int statusCode = response.statusCode();
+            if (statusCode == HttpTransport.HTTP_NOT_FOUND || statusCode == HttpTransport.HTTP_GONE) {
+                return false;
+            }
+            if (checkRedirect && !response.uri().equals(uri)) {
+                return false;
+            }
+            if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                // The part does not fit the file anymore
+                discardPart();
+                throw new IOException("Partial download of " + uri + " is outdated");
+            }
+            boolean resumed = statusCode == HTTP_PARTIAL_CONTENT;
+            if (resumed) {
+                checkContentRange(response, offset);
+            } else if (statusCode == HttpTransport.HTTP_OK) {
+                offset = 0;
+                state = createState(response);
+                writeState(state);
+            } else {
+                throw new IOException("Unexpected response " + statusCode + " from " + uri);
+            }
+            if (resumed) {
+                log.info("Resuming download of " + uri + " from " + offset + " bytes");
+            }
+            MessageDigest digest = checksum == null ? null : checksum.newDigest();
+            if (digest != null && resumed) {
+                ArtifactChecksum.update(digest, partPath);
+            }
+            try (InputStream contentStream = digest == null ? inputStream : new DigestInputStream(inputStream, digest);
+                 OutputStream outputStream = Files.newOutputStream(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     resumed ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+                contentStream.transferTo(outputStream);
+            }
+            String length = state.getProperty(LENGTH_PROPERTY);
+            if (length != null && Files.size(partPath) != Long.parseLong(length)) {
+                throw new IOException("Download of " + uri + " is incomplete: " + Files.size(partPath) + " of " + length + " bytes");
+            }
+            if (digest != null) {
+                try {
+                    checksum.verify(digest, uri);
+                } catch (IOException e) {
+                    // A corrupted part can't be resumed
+                    discardPart();
+                    throw e;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return size of the part which may be continued, 0 if the download has to start from the beginning
+     */
+    private long getResumeOffset() throws IOException {
+        if (!Files.exists(partPath) || !Files.exists(statePath)) {
+            return 0;
+        }
+        Properties state;
+        try {
+            state = FileUtils.readPropertiesFile(statePath);
+        } catch (IOException | IllegalArgumentException e) {
+            return 0;
+        }
+        if (!uri.toString().equals(state.getProperty(URL_PROPERTY)) || state.getProperty(VALIDATOR_PROPERTY) == null) {
+            return 0;
+        }
+        return Files.size(partPath);
+    }
+
+    @NotNull
+    private Properties createState(@NotNull HttpResponse<InputStream> response) {
+        Properties state = new Properties();
+        state.setProperty(URL_PROPERTY, uri.toString());
+        // Weak entity tags can't be used in If-Range
+        String validator = response.headers().firstValue("ETag")
+            .filter(eTag -> !eTag.startsWith("W/"))
+            .or(() -> response.headers().firstValue("Last-Modified"))
+            .orElse(null);
+        if (validator != null) {
+            state.setProperty(VALIDATOR_PROPERTY, validator);
+        }
+        response.headers().firstValue("Content-Length").ifPresent(length -> state.setProperty(LENGTH_PROPERTY, length));
+        return state;
+    }
+
+    private void checkContentRange(@NotNull HttpResponse<InputStream> response, long offset) throws IOException {
+        String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        // bytes <first>-<last>/<length>
+        if (!contentRange.startsWith("bytes " + offset + "-")) {
+            discardPart();
+            throw new IOException("Unexpected content range '" + contentRange + "' from " + uri);
+        }
+    }
+
+    private void writeState(@NotNull Properties state) throws IOException {
+        try (OutputStream outputStream = Files.newOutputStream(statePath)) {
+            state.store(outputStream, null);
+        }
+    }
+
+    private void moveToTarget() throws IOException {
+        FileUtils.publishFile(partPath, target, true);
+    }
+
+    private void discardPart() throws IOException {
+        Files.deleteIfExists(partPath);
+        Files.deleteIfExists(statePath);
+    }
+
+    private static long getBackoffMillis(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (attempt - 1));
+        // Jitter keeps parallel downloads from retrying in lockstep
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Download was interrupted");
+        }
+    }
+}
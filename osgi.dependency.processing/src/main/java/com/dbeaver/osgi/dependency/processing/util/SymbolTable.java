@@ -0,0 +1,192 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.jkiss.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide table of the values repeated over and over in bundle metadata:
+ * symbolic names, package names, versions, version ranges and name-version pairs.
+ * <p>
+ * Every distinct string gets a dense int id, equal values share a single instance.
+ * Ids are never reused, artifact indexes keep them, so a re-indexed repository only adds the values not seen before.
+ * Interned values must not be modified.
+ */
+public class SymbolTable {
+    private static final Logger log = LoggerFactory.getLogger(SymbolTable.class);
+
+    public static final SymbolTable INSTANCE = new SymbolTable();
+
+    // Approximate shallow sizes with compressed oops, only used to report the saved heap
+    private static final int STRING_SIZE = 24 + 16;
+    private static final int VERSION_SIZE = 32;
+    private static final int VERSION_RANGE_SIZE = 24;
+    private static final int PAIR_SIZE = 24;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] symbols = new String[4096];
+    private int symbolCount;
+
+    private final Map<Version, Version> versions = new ConcurrentHashMap<>();
+    private final Map<RangeKey, VersionRange> ranges = new ConcurrentHashMap<>();
+    private final Map<PairKey, Pair<String, ?>> pairs = new ConcurrentHashMap<>();
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    public int getId(@NotNull String symbol) {
+        Integer id = ids.get(symbol);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(symbol);
+            if (id != null) {
+                return id;
+            }
+            if (symbolCount == symbols.length) {
+                symbols = Arrays.copyOf(symbols, symbolCount * 2);
+            }
+            symbols[symbolCount] = symbol;
+            ids.put(symbol, symbolCount);
+            return symbolCount++;
+        }
+    }
+
+    /**
+     * @return id of the symbol or -1 if there is no such symbol, the table is not modified
+     */
+    public int findId(@NotNull String symbol) {
+        Integer id = ids.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    @NotNull
+    public String getSymbol(int id) {
+        return symbols[id];
+    }
+
+    @Nullable
+    public String intern(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        String symbol = getSymbol(getId(value));
+        if (symbol != value) {
+            savedBytes.addAndGet(STRING_SIZE + value.length());
+        }
+        return symbol;
+    }
+
+    @Nullable
+    public Version internVersion(@Nullable Version version) {
+        if (version == null) {
+            return null;
+        }
+        Version canonical = versions.putIfAbsent(version, version);
+        if (canonical == null) {
+            return version;
+        }
+        savedBytes.addAndGet(VERSION_SIZE);
+        return canonical;
+    }
+
+    @Nullable
+    public VersionRange internRange(@Nullable VersionRange range) {
+        if (range == null) {
+            return null;
+        }
+        // VersionRange equality ignores the bounds inclusion, so ranges are keyed by all their parts
+        RangeKey key = new RangeKey(
+            internVersion(range.getFirst()),
+            internVersion(range.getSecond()),
+            range.isIncludingFirst(),
+            range.isIncludingSecond()
+        );
+        VersionRange canonical = ranges.get(key);
+        if (canonical != null) {
+            savedBytes.addAndGet(VERSION_RANGE_SIZE);
+            return canonical;
+        }
+        VersionRange newRange = new VersionRange(key.first(), key.second(), key.includingFirst(), key.includingSecond());
+        canonical = ranges.putIfAbsent(key, newRange);
+        return canonical == null ? newRange : canonical;
+    }
+
+    /**
+     * The second value is compared by identity, it should be interned already.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public <T> Pair<String, T> internPair(@NotNull String first, @Nullable T second) {
+        String symbol = intern(first);
+        PairKey key = new PairKey(symbol, second);
+        Pair<String, ?> canonical = pairs.get(key);
+        if (canonical != null) {
+            savedBytes.addAndGet(PAIR_SIZE);
+            return (Pair<String, T>) canonical;
+        }
+        Pair<String, T> newPair = new Pair<>(symbol, second);
+        canonical = pairs.putIfAbsent(key, newPair);
+        return canonical == null ? newPair : (Pair<String, T>) canonical;
+    }
+
+    public int getSymbolCount() {
+        return ids.size();
+    }
+
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public void logStatistics() {
+        log.info("Symbol table: " + ids.size() + " symbols, " + versions.size() + " versions, "
+            + ranges.size() + " version ranges, " + pairs.size() + " pairs, ~"
+            + savedBytes.get() / 1024 + " KB of duplicate objects avoided");
+    }
+
+    private record RangeKey(Version first, Version second, boolean includingFirst, boolean includingSecond) {
+    }
+
+    private static final class PairKey {
+        private final String first;
+        private final Object second;
+
+        private PairKey(String first, Object second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PairKey key && first.equals(key.first) && second == key.second;
+        }
+
+        @Override
+        public int hashCode() {
+            return first.hashCode() * 31 + System.identityHashCode(second);
+        }
+    }
+}
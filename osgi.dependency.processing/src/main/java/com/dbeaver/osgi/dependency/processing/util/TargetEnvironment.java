@@ -0,0 +1,84 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import com.dbeaver.osgi.dependency.processing.BundleInfo;
+import com.dbeaver.osgi.dependency.processing.xml.ContentFileConstants;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Platform the dependencies are resolved for.
+ */
+public record TargetEnvironment(@NotNull String os, @NotNull String ws, @NotNull String arch) {
+
+    @NotNull
+    public static TargetEnvironment current() {
+        return new TargetEnvironment(BundleInfo.currentOS, BundleInfo.currentWS, BundleInfo.currentArch);
+    }
+
+    /**
+     * Parses the {@code os/ws/arch} notation, e.g. {@code linux/gtk/x86_64}.
+     */
+    @NotNull
+    public static TargetEnvironment fromString(@NotNull String value) {
+        String[] parts = value.trim().split("/");
+        if (parts.length != 3 || Arrays.stream(parts).anyMatch(String::isBlank)) {
+            throw new IllegalArgumentException("Target environment '" + value + "' is not in os/ws/arch format");
+        }
+        return new TargetEnvironment(parts[0].trim(), parts[1].trim(), parts[2].trim());
+    }
+
+    public static int getAllMask(@NotNull List<TargetEnvironment> environments) {
+        return environments.size() >= Integer.SIZE ? -1 : (1 << environments.size()) - 1;
+    }
+
+    /**
+     * @return bits of the environments the filter matches, the bit index is the index in the list
+     */
+    public static int getMatchingMask(@NotNull List<TargetEnvironment> environments, @NotNull Predicate<TargetEnvironment> filter) {
+        int mask = 0;
+        for (int i = 0; i < environments.size(); i++) {
+            if (filter.test(environments.get(i))) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return value of the filter property or null if the environment does not define it
+     */
+    @Nullable
+    public String getProperty(@NotNull String name) {
+        return switch (name) {
+            case ContentFileConstants.OS_FILTER -> os;
+            case ContentFileConstants.WS_FILTER -> ws;
+            case ContentFileConstants.ARCH_FILTER -> arch;
+            default -> null;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return os + "/" + ws + "/" + arch;
+    }
+}
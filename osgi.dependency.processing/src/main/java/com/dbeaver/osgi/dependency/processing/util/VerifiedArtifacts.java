@@ -0,0 +1,154 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.util;
+
+import com.dbeaver.osgi.dependency.processing.PathsManager;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * Records of the artifacts in the plugins and features folders whose checksum was verified.
+ * <p>
+ * A record keeps the checksum together with the size and modification time of the file, so later runs
+ * validate the pool with a single stat per artifact and only hash files that were changed or never verified.
+ * Records are stored under {@code <eclipse>/checksums}, the plugins folder itself is scanned for bundles.
+ */
+public final class VerifiedArtifacts {
+    private static final Logger log = LoggerFactory.getLogger(VerifiedArtifacts.class);
+
+    private static final String CHECKSUMS_FOLDER = "checksums";
+    private static final String RECORD_SUFFIX = ".properties";
+    private static final String CHECKSUM_PROPERTY = "checksum";
+    private static final String SIZE_PROPERTY = "size";
+    private static final String MODIFIED_PROPERTY = "modified";
+
+    private VerifiedArtifacts() {
+    }
+
+    /**
+     * @param checksum published checksum, without it any existing artifact is valid
+     * @return false if the artifact is absent or does not match the checksum
+     */
+    public static boolean isValid(@NotNull Path artifact, @Nullable ArtifactChecksum checksum) {
+        if (!Files.exists(artifact)) {
+            return false;
+        }
+        if (checksum == null) {
+            return true;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(artifact, BasicFileAttributes.class);
+            Properties record = readRecord(artifact);
+            if (record != null && checksum.toString().equals(record.getProperty(CHECKSUM_PROPERTY))) {
+                // Folders are extracted archives, the record is written once the extraction is complete
+                if (attributes.isDirectory() || isUnchanged(record, attributes)) {
+                    return true;
+                }
+            }
+            if (attributes.isDirectory()) {
+                log.info(artifact.getFileName() + " was not extracted completely, it will be downloaded again");
+                return false;
+            }
+            if (checksum.matches(artifact)) {
+                record(artifact, checksum);
+                return true;
+            }
+            log.warn(artifact.getFileName() + " does not match its " + checksum.algorithm() + " checksum, it will be downloaded again");
+        } catch (IOException e) {
+            log.warn("Cannot verify " + artifact + ", it will be downloaded again", e);
+        }
+        return false;
+    }
+
+    /**
+     * Marks the artifact as verified, for an extracted folder the checksum is the one of its archive.
+     */
+    public static void record(@NotNull Path artifact, @NotNull ArtifactChecksum checksum) {
+        Properties record = new Properties();
+        record.setProperty(CHECKSUM_PROPERTY, checksum.toString());
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(artifact, BasicFileAttributes.class);
+            if (!attributes.isDirectory()) {
+                record.setProperty(SIZE_PROPERTY, String.valueOf(attributes.size()));
+                record.setProperty(MODIFIED_PROPERTY, String.valueOf(attributes.lastModifiedTime().toMillis()));
+            }
+            Path recordPath = getRecordPath(artifact);
+            Files.createDirectories(recordPath.getParent());
+            try (OutputStream outputStream = Files.newOutputStream(recordPath)) {
+                record.store(outputStream, null);
+            }
+        } catch (IOException e) {
+            // The artifact is verified again by the next run
+            log.debug("Cannot record checksum of " + artifact, e);
+        }
+    }
+
+    /**
+     * Removes the artifact and its record.
+     */
+    public static void remove(@NotNull Path artifact) throws IOException {
+        Files.deleteIfExists(getRecordPath(artifact));
+        if (Files.isDirectory(artifact)) {
+            try (Stream<Path> files = Files.walk(artifact)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        } else {
+            Files.deleteIfExists(artifact);
+        }
+    }
+
+    @Nullable
+    private static Properties readRecord(@NotNull Path artifact) {
+        Path recordPath = getRecordPath(artifact);
+        if (!Files.exists(recordPath)) {
+            return null;
+        }
+        try {
+            return FileUtils.readPropertiesFile(recordPath);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isUnchanged(@NotNull Properties record, @NotNull BasicFileAttributes attributes) {
+        return String.valueOf(attributes.size()).equals(record.getProperty(SIZE_PROPERTY)) &&
+            String.valueOf(attributes.lastModifiedTime().toMillis()).equals(record.getProperty(MODIFIED_PROPERTY));
+    }
+
+    @NotNull
+    private static Path getRecordPath(@NotNull Path artifact) {
+        // plugins/foo_1.0.jar -> checksums/plugins/foo_1.0.jar.properties
+        Path folder = artifact.getParent();
+        return PathsManager.INSTANCE.getEclipsePath()
+            .resolve(CHECKSUMS_FOLDER)
+            .resolve(folder == null ? "" : folder.getFileName().toString())
+            .resolve(artifact.getFileName() + RECORD_SUFFIX);
+    }
+}
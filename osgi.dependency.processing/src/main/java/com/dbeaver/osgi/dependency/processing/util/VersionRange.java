@@ -65,6 +65,14 @@ public class VersionRange extends Pair<Version, Version> {
         return range;
     }
 
+    public boolean isIncludingFirst() {
+        return includingFirst;
+    }
+
+    public boolean isIncludingSecond() {
+        return includingSecond;
+    }
+
     public boolean versionIsSuitable(Version version) {
         boolean isValid = true;
         if (getFirst() != null) {
@@ -0,0 +1,118 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.xml;
+
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits content.xml into ranges of whole units, every range can be parsed as a separate document.
+ * <p>
+ * Units are found by the raw {@code <unit} tag, which is unambiguous since markup inside unit texts is escaped.
+ * p2 always writes metadata in UTF-8.
+ */
+final class ContentFileChunker {
+    private static final byte[] UNIT_START = "<unit".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNITS_END = "</units>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_PREFIX = "<?xml version='1.0' encoding='UTF-8'?>\n<units>\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CHUNK_SUFFIX = "\n</units>\n".getBytes(StandardCharsets.US_ASCII);
+
+    private ContentFileChunker() {
+    }
+
+    /**
+     * @return unit ranges in document order, or null if the content does not have the expected layout
+     */
+    @Nullable
+    static List<ByteBuffer> split(@NotNull ByteBuffer content, int chunkCount) {
+        int end = lastIndexOf(content, UNITS_END);
+        if (end < 0) {
+            return null;
+        }
+        int first = indexOfUnit(content, 0, end);
+        if (first < 0) {
+            return List.of();
+        }
+        List<ByteBuffer> chunks = new ArrayList<>(chunkCount);
+        int chunkSize = Math.max(1, (end - first) / chunkCount);
+        int start = first;
+        for (int i = 1; i < chunkCount; i++) {
+            int position = Math.max(first + i * chunkSize, start + 1);
+            int next = indexOfUnit(content, position, end);
+            if (next < 0) {
+                break;
+            }
+            chunks.add(content.slice(start, next - start));
+            start = next;
+        }
+        chunks.add(content.slice(start, end - start));
+        return chunks;
+    }
+
+    /**
+     * Wraps the range into a standalone document.
+     */
+    @NotNull
+    static InputStream openChunk(@NotNull ByteBuffer chunk) {
+        return new SequenceInputStream(Collections.enumeration(List.of(
+            new ByteArrayInputStream(CHUNK_PREFIX),
+            FileUtils.newInputStream(chunk.duplicate()),
+            new ByteArrayInputStream(CHUNK_SUFFIX)
+        )));
+    }
+
+    private static int indexOfUnit(@NotNull ByteBuffer content, int from, int to) {
+        for (int i = from; i <= to - UNIT_START.length - 1; i++) {
+            if (matches(content, i, UNIT_START)) {
+                // Skips <units>
+                byte next = content.get(i + UNIT_START.length);
+                if (next == ' ' || next == '\t' || next == '\r' || next == '\n' || next == '>') {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(@NotNull ByteBuffer content, @NotNull byte[] pattern) {
+        for (int i = content.limit() - pattern.length; i >= 0; i--) {
+            if (matches(content, i, pattern)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(@NotNull ByteBuffer content, int position, @NotNull byte[] pattern) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (content.get(position + i) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
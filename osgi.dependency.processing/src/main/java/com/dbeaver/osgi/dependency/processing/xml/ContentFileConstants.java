@@ -16,15 +16,13 @@
  */
 package com.dbeaver.osgi.dependency.processing.xml;
 
-import java.util.regex.Pattern;
-
 public class ContentFileConstants {
     public static final String ARCH_FILTER = "osgi.arch";
 
     public static final String WS_FILTER = "osgi.ws";
     public static final String OS_FILTER = "osgi.os";
 
-    public static final Pattern START_LEVEL_PATTERN = Pattern.compile(".*startLevel:\\s*(-?\\d+).*");
+    public static final String START_LEVEL_PREFIX = "startLevel:";
     public static final String REQUIRED_PROPERTIES_KEYWORD = "requiredProperties";
     public static final String INSTRUCTION_KEYWORD = "instruction";
     public static final String PROVIDED_KEYWORD = "provided";
@@ -40,6 +38,7 @@ public class ContentFileConstants {
     public static final String MATCH_FIELD = "match";
     public static final String KEY_FIELD = "key";
     public static final String MAVEN_TYPE_FIELD = "maven-type";
+    public static final String MAVEN_ARTIFACT_ID_FIELD = "maven-artifactId";
 
     public static final String MAVEN_P2TYPE_CATEGORY = "org.eclipse.equinox.p2.type.category";
     public static final String PROPERTY_KEYWORD = "property";
@@ -16,64 +16,157 @@
  */
 package com.dbeaver.osgi.dependency.processing.xml;
 
-import com.dbeaver.osgi.dependency.processing.BundleInfo;
 import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
 import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteBundleStore;
 import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
 import org.jkiss.code.NotNull;
-import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2Repository;
+import com.dbeaver.osgi.dependency.processing.p2.repository.P2Repository;
 import com.dbeaver.osgi.dependency.processing.util.DependencyInformation;
+import com.dbeaver.osgi.dependency.processing.util.FileUtils;
+import com.dbeaver.osgi.dependency.processing.util.IntList;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
 import com.dbeaver.osgi.dependency.processing.util.Version;
 import com.dbeaver.osgi.dependency.processing.util.VersionRange;
 import org.jkiss.code.Nullable;
-import org.jkiss.utils.CommonUtils;
 import org.jkiss.utils.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 public class ContentFileHandler extends DefaultHandler {
-
-
-    private final RemoteP2Repository repository;
+    private static final Logger log = LoggerFactory.getLogger(ContentFileHandler.class);
+
+    // Chunks are smaller than an even share of the threads, so threads finishing early can steal the rest
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_SIZE = 2 * 1024 * 1024;
+    private static final List<String> ELEMENT_KEYWORDS = List.of(
+        ContentFileConstants.UNIT_KEYWORD,
+        ContentFileConstants.PROPERTY_KEYWORD,
+        ContentFileConstants.REQUIRED_KEYWORD,
+        ContentFileConstants.PROVIDED_KEYWORD,
+        ContentFileConstants.REQUIRED_PROPERTIES_KEYWORD,
+        ContentFileConstants.INSTRUCTION_KEYWORD,
+        ContentFileConstants.FILTER_KEYWORD
+    );
+
+    private final P2Repository repository;
     private final P2BundleLookupCache cache;
     private final ContentParserXmlExtension extension;
+    private final List<TargetEnvironment> environments;
     private RemoteP2BundleInfo.RemoteBundleInfoBuilder currentBundle;
     private Pair<DependencyInformation, DependencyType> currentDependency;
 
     private ParserState currentState = ParserState.ROOT;
     private ContentType currentContentType = null;
-    private final Set<RemoteP2BundleInfo> remoteP2BundleInfos = new HashSet<>();
+    private final IntList remoteBundleUnits = new IntList();
 
-    private final Set<RemoteP2Feature> remoteP2Features = new HashSet<>();
+    private final Set<RemoteP2Feature> remoteP2Features = new LinkedHashSet<>();
     private UnitInformation currentUnit;
     private String artifactID;
+    private final StringBuilder elementText = new StringBuilder();
+    private int unitPlatforms;
+    private int dependencyPlatforms;
+    // Element names as written in the document mapped to the keywords they match ignoring case
+    private final Map<String, String> elementNames = new HashMap<>();
 
     public static void indexContent(
-            @NotNull RemoteP2Repository repository,
-            @NotNull File contentFile,
+            @NotNull P2Repository repository,
+            @NotNull InputStream contentStream,
             @NotNull P2BundleLookupCache cache,
             @Nullable ContentParserXmlExtension extension
     ) throws IOException, SAXException, ParserConfigurationException {
+        indexContent(repository, contentStream, cache, extension, List.of(TargetEnvironment.current()));
+    }
+
+    /**
+     * Indexes the units matching any of the target environments in a single pass.
+     * <p>
+     * Every bundle and feature gets the mask of the environments its unit filter matches, the bit index is the index
+     * in the list. Requirements are kept with the mask of their filter if it matches any of the environments.
+     * Documents indexed with the same extension are parsed one after another.
+     */
+    public static void indexContent(
+            @NotNull P2Repository repository,
+            @NotNull InputStream contentStream,
+            @NotNull P2BundleLookupCache cache,
+            @Nullable ContentParserXmlExtension extension,
+            @NotNull List<TargetEnvironment> environments
+    ) throws IOException, SAXException, ParserConfigurationException {
+        ContentFileHandler contentFileHandler = new ContentFileHandler(repository, cache, extension, environments);
+        if (extension != null) {
+            // Repositories are indexed concurrently, while extensions are stateful and not required to be thread-safe.
+            // The extension sees the events of one document at a time.
+            synchronized (extension) {
+                newParser().parse(contentStream, contentFileHandler);
+            }
+        } else {
+            newParser().parse(contentStream, contentFileHandler);
+        }
+        repository.addRemoteBundles(contentFileHandler.remoteBundleUnits);
+        repository.addRemoteFeatures(contentFileHandler.remoteP2Features);
+    }
+
+    /**
+     * Splits large content into ranges of units and parses them as parallel tasks of the current fork-join pool.
+     * Partial indexes are merged in document order, so the result is the same as of the sequential parsing.
+     * Extensions expect elements in document order and are not supported here.
+     */
+    public static void indexContentInChunks(
+        @NotNull P2Repository repository,
+        @NotNull ByteBuffer content,
+        @NotNull P2BundleLookupCache cache,
+        @NotNull List<TargetEnvironment> environments
+    ) throws IOException, SAXException, ParserConfigurationException {
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        int chunkCount = Math.min(pool.getParallelism() * CHUNKS_PER_THREAD, content.remaining() / MIN_CHUNK_SIZE);
+        List<ByteBuffer> chunks = chunkCount > 1 ? ContentFileChunker.split(content, chunkCount) : null;
+        if (chunks == null || chunks.size() < 2) {
+            indexContent(repository, FileUtils.newInputStream(content.duplicate()), cache, null, environments);
+            return;
+        }
+        List<ForkJoinTask<ContentFileHandler>> tasks = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                ContentFileHandler chunkHandler = new ContentFileHandler(repository, new P2BundleLookupCache(), null, environments);
+                newParser().parse(ContentFileChunker.openChunk(chunk), chunkHandler);
+                return chunkHandler;
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (ForkJoinTask<ContentFileHandler> task : tasks) {
+            ContentFileHandler chunkHandler = task.join();
+            cache.addAll(chunkHandler.cache);
+            repository.addRemoteBundles(chunkHandler.remoteBundleUnits);
+            repository.addRemoteFeatures(chunkHandler.remoteP2Features);
+        }
+        log.debug("Content of " + repository.getName() + " parsed in " + chunks.size() + " chunks");
+    }
+
+    @NotNull
+    private static SAXParser newParser() throws ParserConfigurationException, SAXException {
         SAXParserFactory factory = SAXParserFactory.newInstance();
         factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-        SAXParser saxParser = factory.newSAXParser();
-        ContentFileHandler contentFileHandler = new ContentFileHandler(repository, cache, extension);
-        saxParser.parse(contentFile, contentFileHandler);
-        repository.addRemoteBundles(contentFileHandler.remoteP2BundleInfos);
-        repository.addRemoteFeatures(contentFileHandler.remoteP2Features);
+        return factory.newSAXParser();
     }
 
 
@@ -92,87 +185,97 @@ public class ContentFileHandler extends DefaultHandler {
         if (extension != null) {
             extension.startElement(uri, localName, qualifiedName, attributes, currentState, currentUnit);
         }
-        if (ContentFileConstants.UNIT_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            currentState = ParserState.PLUGIN_VALID;
-            String id = attributes.getValue(ContentFileConstants.ID_FIELD);
-            String version = attributes.getValue(ContentFileConstants.VERSION_FIELD);
-            this.currentUnit = new UnitInformation(id, version);
+        switch (getElementName(qualifiedName)) {
+            case ContentFileConstants.UNIT_KEYWORD -> startUnit(attributes);
+            case ContentFileConstants.PROPERTY_KEYWORD -> startProperty(attributes);
+            case ContentFileConstants.REQUIRED_KEYWORD -> startDependency(attributes, true);
+            case ContentFileConstants.PROVIDED_KEYWORD -> startDependency(attributes, false);
+            case ContentFileConstants.INSTRUCTION_KEYWORD -> startInstruction(attributes);
+            case ContentFileConstants.FILTER_KEYWORD -> startFilter();
+            default -> {
+                // not indexed
+            }
         }
-        if (currentState.isInsideUnit() && ContentFileConstants.PROPERTY_KEYWORD.equalsIgnoreCase(qualifiedName)
-            && "maven-artifactId".equalsIgnoreCase(attributes.getValue(ContentFileConstants.NAME_FIELD))) {
-            artifactID = attributes.getValue(ContentFileConstants.FIELD_VALUE);
+        super.startElement(uri, localName, qualifiedName, attributes);
+    }
+
+    private void startUnit(Attributes attributes) {
+        currentState = ParserState.PLUGIN_VALID;
+        String id = attributes.getValue(ContentFileConstants.ID_FIELD);
+        String version = attributes.getValue(ContentFileConstants.VERSION_FIELD);
+        this.currentUnit = new UnitInformation(SymbolTable.INSTANCE.intern(id), SymbolTable.INSTANCE.intern(version));
+        this.unitPlatforms = TargetEnvironment.getAllMask(environments);
+    }
+
+    private void startProperty(Attributes attributes) {
+        if (!currentState.isInsideUnit()) {
+            return;
         }
-        if (
-            currentState.equals(ParserState.PLUGIN_VALID) && ContentFileConstants.PROPERTY_KEYWORD.equalsIgnoreCase(qualifiedName)
-        ) {
-            if (ContentFileConstants.MAVEN_TYPE_FIELD.equalsIgnoreCase(attributes.getValue(ContentFileConstants.NAME_FIELD))) {
-                switch (attributes.getValue(ContentFileConstants.FIELD_VALUE).toLowerCase()) {
-                    case "eclipse-feature" ->
-                        currentState = ParserState.FEATURE_VALID;
-                    case "jar", "eclipse-plugin" -> {
-                        currentState = ParserState.PLUGIN_VALID;
-                        initBundle(false);
-                    }
-                    case "java-source" -> {
-                        currentState = ParserState.SOURCES_VALID;
-                        initBundle(true);
-                    }
-                    default -> {
-                        // do nothing
-                    }
+        String name = attributes.getValue(ContentFileConstants.NAME_FIELD);
+        if (ContentFileConstants.MAVEN_ARTIFACT_ID_FIELD.equalsIgnoreCase(name)) {
+            artifactID = attributes.getValue(ContentFileConstants.FIELD_VALUE);
+        } else if (currentState == ParserState.PLUGIN_VALID) {
+            if (ContentFileConstants.MAVEN_TYPE_FIELD.equalsIgnoreCase(name)) {
+                String type = attributes.getValue(ContentFileConstants.FIELD_VALUE);
+                if ("eclipse-feature".equalsIgnoreCase(type)) {
+                    currentState = ParserState.FEATURE_VALID;
+                } else if ("jar".equalsIgnoreCase(type) || "eclipse-plugin".equalsIgnoreCase(type)) {
+                    initBundle(false);
+                } else if ("java-source".equalsIgnoreCase(type)) {
+                    currentState = ParserState.SOURCES_VALID;
+                    initBundle(true);
                 }
-            } else if (ContentFileConstants.MAVEN_P2TYPE_CATEGORY.equalsIgnoreCase(attributes.getValue(ContentFileConstants.NAME_FIELD))) {
+            } else if (ContentFileConstants.MAVEN_P2TYPE_CATEGORY.equalsIgnoreCase(name)) {
                 if ("true".equalsIgnoreCase(attributes.getValue(ContentFileConstants.FIELD_VALUE))) {
                     currentState = ParserState.UNIT_INVALID;
                 }
             }
         }
-        if (
-            currentState.isPluginOrComment()
-                && (ContentFileConstants.REQUIRED_KEYWORD.equalsIgnoreCase(qualifiedName)
-                || ContentFileConstants.PROVIDED_KEYWORD.equalsIgnoreCase(qualifiedName))
-        ) {
-            if (
-                ContentFileConstants.REQUIRED_KEYWORD.equalsIgnoreCase(qualifiedName)
-                    && "true".equalsIgnoreCase(attributes.getValue("optional"))
-            ) {
-                currentState = ParserState.DEPENDENCY_INVALID;
-                return;
-            }
-            String name = attributes.getValue(ContentFileConstants.NAME_FIELD);
-            String namespace = attributes.getValue(ContentFileConstants.NAMESPACE_FIELD);
-            String depVersion = attributes.getValue(ContentFileConstants.VERSION_FIELD);
-            String depRange = attributes.getValue(ContentFileConstants.RANGE_FIELD);
-            DependencyType type = DependencyType.getType(namespace);
-            currentState = ParserState.DEPENDENCY;
-            if (currentBundle == null) {
-                initBundle(false);
-            }
-            currentDependency = new Pair<>(new DependencyInformation(
-                name,
-                depVersion != null ? new Version(depVersion) : null,
-                depRange != null ? VersionRange.fromString(depRange) : null
-                ), type);
-        }
-        if (!currentState.isInvalid()
-            && currentState.isInsideUnit()
-            && ContentFileConstants.INSTRUCTION_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            if ("configure".equalsIgnoreCase(attributes.getValue(ContentFileConstants.KEY_FIELD))) {
-                currentContentType = ContentType.INSTRUCTION;
-            } else if (currentState.isPluginOrComment()
-                && "zipped".equals(attributes.getValue(ContentFileConstants.KEY_FIELD))) {
-                currentBundle.setZipped(true);
-            }
+    }
+
+    private void startDependency(Attributes attributes, boolean required) {
+        if (!currentState.isPluginOrComment()) {
+            return;
         }
-        if (
-            !currentState.isInvalid()
-                && (currentState.isInsideUnit() || currentState.isInsideDependency())
-                && ContentFileConstants.FILTER_KEYWORD.equalsIgnoreCase(qualifiedName)
-        ) {
-            currentContentType = ContentType.FILTER;
+        if (required && "true".equalsIgnoreCase(attributes.getValue("optional"))) {
+            currentState = ParserState.DEPENDENCY_INVALID;
+            return;
+        }
+        String name = attributes.getValue(ContentFileConstants.NAME_FIELD);
+        String namespace = attributes.getValue(ContentFileConstants.NAMESPACE_FIELD);
+        String depVersion = attributes.getValue(ContentFileConstants.VERSION_FIELD);
+        String depRange = attributes.getValue(ContentFileConstants.RANGE_FIELD);
+        DependencyType type = DependencyType.getType(namespace);
+        currentState = ParserState.DEPENDENCY;
+        dependencyPlatforms = TargetEnvironment.getAllMask(environments);
+        if (currentBundle == null) {
+            initBundle(false);
         }
+        currentDependency = new Pair<>(new DependencyInformation(
+            name,
+            depVersion != null ? new Version(depVersion) : null,
+            depRange != null ? VersionRange.fromString(depRange) : null
+            ), type);
+    }
 
-        super.startElement(uri, localName, qualifiedName, attributes);
+    private void startInstruction(Attributes attributes) {
+        if (currentState.isInvalid() || !currentState.isInsideUnit()) {
+            return;
+        }
+        String key = attributes.getValue(ContentFileConstants.KEY_FIELD);
+        if ("configure".equalsIgnoreCase(key)) {
+            currentContentType = ContentType.INSTRUCTION;
+            elementText.setLength(0);
+        } else if (currentState.isPluginOrComment() && "zipped".equals(key)) {
+            currentBundle.setZipped(true);
+        }
+    }
+
+    private void startFilter() {
+        if (!currentState.isInvalid() && (currentState.isInsideUnit() || currentState.isInsideDependency())) {
+            currentContentType = ContentType.FILTER;
+            elementText.setLength(0);
+        }
     }
 
     private void initBundle(boolean sourceBundle) {
@@ -186,106 +289,186 @@ public class ContentFileHandler extends DefaultHandler {
         if (extension != null) {
             extension.endElement(uri, localName, qualifiedName, currentState, currentUnit);
         }
-        if (currentState.isInsideUnit() && ContentFileConstants.UNIT_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            if (currentState != ParserState.UNIT_INVALID) {
-                if (currentState.isPluginOrComment()) {
-                    if (currentBundle == null) {
-                        initBundle(false);
+        switch (getElementName(qualifiedName)) {
+            case ContentFileConstants.UNIT_KEYWORD -> endUnit();
+            case ContentFileConstants.REQUIRED_KEYWORD -> {
+                if (currentState == ParserState.DEPENDENCY) {
+                    if (currentDependency.getSecond() == DependencyType.BUNDLE) {
+                        currentBundle.addToRequiredBundles(currentDependency.getFirst().name(), currentDependency.getFirst().range(),
+                            dependencyPlatforms);
+                    } else if (currentDependency.getSecond() == DependencyType.PACKAGE) {
+                        currentBundle.addToRequiredPackages(currentDependency.getFirst().name(), currentDependency.getFirst().range(),
+                            dependencyPlatforms);
                     }
-                    RemoteP2BundleInfo bundle = currentBundle.build();
-                    if (repository.isIndexed(bundle.getBundleName(), bundle.getBundleVersion())) {
-                        cache.addRemoteBundle(bundle);
-                        remoteP2BundleInfos.add(bundle);
+                }
+                endDependency();
+            }
+            case ContentFileConstants.PROVIDED_KEYWORD -> {
+                if (currentState == ParserState.DEPENDENCY) {
+                    if (currentDependency.getSecond() == DependencyType.PACKAGE) {
+                        currentBundle.addToExportPackage(currentDependency.getFirst().name(), currentDependency.getFirst().version());
+                    } else if (currentDependency.getSecond() == DependencyType.FRAGMENT) {
+                        // Fragment host is known from metadata, the resolver does not need the manifest for it
+                        currentBundle.setFragmentHost(currentDependency.getFirst().name());
                     }
                 }
-                if (currentState == ParserState.FEATURE_VALID) {
-                    RemoteP2Feature remoteP2Feature = new RemoteP2Feature(artifactID, currentUnit.version(), repository);
-                    if (repository.isIndexed(artifactID, currentUnit.version())) {
-                        cache.addRemoteFeature(remoteP2Feature);
-                        remoteP2Features.add(remoteP2Feature);
+                endDependency();
+            }
+            case ContentFileConstants.REQUIRED_PROPERTIES_KEYWORD -> {
+                if (currentState == ParserState.DEPENDENCY) {
+                    currentBundle.addToRequiredPackages(currentDependency.getFirst().name(), currentDependency.getFirst().range(),
+                        dependencyPlatforms);
+                }
+                endDependency();
+            }
+            case ContentFileConstants.INSTRUCTION_KEYWORD -> {
+                if (currentState.isInsideUnit() && currentContentType == ContentType.INSTRUCTION) {
+                    Integer startLevel = parseStartLevel(elementText);
+                    if (startLevel != null && currentState.isPluginOrComment()) {
+                        if (currentBundle == null) {
+                            initBundle(false);
+                        }
+                        currentBundle.setStartLevel(startLevel);
                     }
+                    currentContentType = null;
                 }
             }
-            currentBundle = null;
-            currentUnit = null;
-            artifactID = null;
-            currentState = ParserState.ROOT;
-        }
-        if (currentState.isInsideDependency() && ContentFileConstants.REQUIRED_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            if (currentState != ParserState.DEPENDENCY_INVALID) {
-                if (currentDependency.getSecond().equals(DependencyType.BUNDLE)) {
-                    currentBundle.addToRequiredBundles(currentDependency.getFirst().name(), currentDependency.getFirst().range());
-                } else if (currentDependency.getSecond().equals(DependencyType.PACKAGE)) {
-                    currentBundle.addToRequiredPackages(currentDependency.getFirst().name(), currentDependency.getFirst().range());
+            case ContentFileConstants.FILTER_KEYWORD -> {
+                if ((currentState.isInsideUnit() || currentState.isInsideDependency()) && currentContentType == ContentType.FILTER) {
+                    endFilter();
                 }
             }
-            currentDependency = null;
-            currentState = ParserState.PLUGIN_VALID;
+            default -> {
+                // not indexed
+            }
         }
+        super.endElement(uri, localName, qualifiedName);
+    }
 
-        if (currentState.isInsideDependency() && ContentFileConstants.PROVIDED_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            if (currentState != ParserState.DEPENDENCY_INVALID) {
-                if (
-                    currentDependency.getSecond().equals(DependencyType.PACKAGE)
-                ) {
-                    currentBundle.addToExportPackage(currentDependency.getFirst().name(), currentDependency.getFirst().version());
+    /**
+     * Elements are matched ignoring case, a document only has a few distinct names, so each is resolved once.
+     */
+    private String getElementName(String qualifiedName) {
+        String name = elementNames.get(qualifiedName);
+        if (name == null) {
+            name = qualifiedName;
+            for (String keyword : ELEMENT_KEYWORDS) {
+                if (keyword.equalsIgnoreCase(qualifiedName)) {
+                    name = keyword;
+                    break;
                 }
             }
-            currentDependency = null;
-            currentState = ParserState.PLUGIN_VALID;
+            elementNames.put(qualifiedName, name);
+        }
+        return name;
+    }
+
+    private void endUnit() {
+        if (!currentState.isInsideUnit()) {
+            return;
         }
-        if (currentState.isInsideDependency()
-            && ContentFileConstants.REQUIRED_PROPERTIES_KEYWORD.equalsIgnoreCase(qualifiedName)) {
-            if (currentState != ParserState.DEPENDENCY_INVALID) {
-                currentBundle.addToRequiredPackages(currentDependency.getFirst().name(), currentDependency.getFirst().range());
+        if (currentState != ParserState.UNIT_INVALID) {
+            if (currentState.isPluginOrComment()) {
+                if (currentBundle == null) {
+                    initBundle(false);
+                }
+                if (repository.isIndexed(currentBundle.getBundleName(), currentBundle.getBundleVersion())) {
+                    currentBundle.setPlatforms(unitPlatforms);
+                    int unit = RemoteBundleStore.INSTANCE.add(currentBundle);
+                    cache.addRemoteBundle(unit);
+                    remoteBundleUnits.add(unit);
+                }
             }
+            if (currentState == ParserState.FEATURE_VALID) {
+                RemoteP2Feature remoteP2Feature = new RemoteP2Feature(artifactID, currentUnit.version(), repository, unitPlatforms);
+                if (repository.isIndexed(artifactID, currentUnit.version())) {
+                    cache.addRemoteFeature(remoteP2Feature);
+                    remoteP2Features.add(remoteP2Feature);
+                }
+            }
+        }
+        currentBundle = null;
+        currentUnit = null;
+        artifactID = null;
+        currentState = ParserState.ROOT;
+    }
+
+    private void endDependency() {
+        if (currentState.isInsideDependency()) {
             currentDependency = null;
             currentState = ParserState.PLUGIN_VALID;
         }
-        if (
-            currentState.isInsideUnit()
-                && ContentFileConstants.INSTRUCTION_KEYWORD.equalsIgnoreCase(qualifiedName)
-                && ContentType.INSTRUCTION.equals(currentContentType)
-        ) {
-            currentContentType = null;
-        }
-        if ((currentState.isInsideUnit() || currentState.isInsideDependency())
-            && ContentFileConstants.FILTER_KEYWORD.equalsIgnoreCase(qualifiedName) && ContentType.FILTER.equals(currentContentType)) {
-            currentContentType = null;
+    }
+
+    private void endFilter() {
+        // The text may come in several chunks, so the filter is only evaluated once it is complete
+        LdapFilter filter = LdapFilter.compile(elementText.toString());
+        int platforms = TargetEnvironment.getMatchingMask(environments, filter::matches);
+        if (currentState.isInsideDependency()) {
+            dependencyPlatforms = platforms;
+            if (platforms == 0) {
+                currentState = ParserState.DEPENDENCY_INVALID;
+            }
+        } else {
+            unitPlatforms &= platforms;
+            if (unitPlatforms == 0) {
+                currentState = ParserState.UNIT_INVALID;
+            }
         }
-        super.endElement(uri, localName, qualifiedName);
+        currentContentType = null;
     }
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
-        String content = new String(ch, start, length);
-        if (!currentState.isInvalid() && ContentType.INSTRUCTION.equals(currentContentType)) {
-            String level = getMatchOrNull(ContentFileConstants.START_LEVEL_PATTERN, content.trim());
-            if (!CommonUtils.isEmpty(level)) {
-                currentBundle.setStartLevel(Integer.parseInt(level));
-            }
-        }
-        if (ContentType.FILTER.equals(currentContentType)) {
-            String filter = content.trim();
-            if (!FilterEvaluator.parseEval(filter)) {
-                currentState = currentState.isInsideDependency() ? ParserState.DEPENDENCY_INVALID : ParserState.UNIT_INVALID;
-            }
+        // Only instruction and filter texts are used, everything else is skipped without copying
+        if (currentContentType != null) {
+            elementText.append(ch, start, length);
         }
         super.characters(ch, start, length);
     }
 
-    private String getMatchOrNull(Pattern pattern, String content) {
-        Matcher matcher = pattern.matcher(content);
-        if (!matcher.matches()) {
+    /**
+     * Finds the value of {@code startLevel:} in a configure instruction, e.g. {@code setStartLevel(startLevel:4);}.
+     */
+    @Nullable
+    private static Integer parseStartLevel(CharSequence instruction) {
+        String text = instruction.toString();
+        int index = text.lastIndexOf(ContentFileConstants.START_LEVEL_PREFIX);
+        if (index < 0) {
+            return null;
+        }
+        int position = index + ContentFileConstants.START_LEVEL_PREFIX.length();
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        int numberStart = position;
+        if (position < text.length() && text.charAt(position) == '-') {
+            position++;
+        }
+        int digitsStart = position;
+        while (position < text.length() && Character.isDigit(text.charAt(position))) {
+            position++;
+        }
+        if (position == digitsStart) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(text, numberStart, position, 10);
+        } catch (NumberFormatException e) {
             return null;
         }
-        return matcher.group(1);
     }
 
-    private ContentFileHandler(RemoteP2Repository repository, P2BundleLookupCache cache, @Nullable ContentParserXmlExtension extension) {
+    private ContentFileHandler(
+        P2Repository repository,
+        P2BundleLookupCache cache,
+        @Nullable ContentParserXmlExtension extension,
+        List<TargetEnvironment> environments
+    ) {
         this.repository = repository;
         this.cache = cache;
         this.extension = extension;
+        this.environments = environments;
     }
 
 
@@ -321,11 +504,13 @@ public class ContentFileHandler extends DefaultHandler {
     private enum DependencyType {
         PACKAGE,
         BUNDLE,
+        FRAGMENT,
         UNKNOWN;
 
         public static final String OSGI_SERVICELOADER = "osgi.serviceloader";
         public static final String OSGI_BUNDLE = "osgi.bundle";
         public static final String JAVA_PACKAGE = "java.package";
+        public static final String OSGI_FRAGMENT = "osgi.fragment";
 
         public static DependencyType getType(String namespace) {
             DependencyType type;
@@ -333,6 +518,8 @@ public class ContentFileHandler extends DefaultHandler {
                 type = DependencyType.PACKAGE;
             } else if (OSGI_BUNDLE.equalsIgnoreCase(namespace)) {
                 type = DependencyType.BUNDLE;
+            } else if (OSGI_FRAGMENT.equalsIgnoreCase(namespace)) {
+                type = DependencyType.FRAGMENT;
             } else {
                 type = DependencyType.UNKNOWN;
             }
@@ -345,95 +532,4 @@ public class ContentFileHandler extends DefaultHandler {
         FILTER
     }
 
-    private class FilterEvaluator {
-        public static boolean parseEval(String filter) {
-            if (filter.length() <= 1) {
-                return true;
-            }
-            char[] filterArray = filter.toCharArray();
-            return parseSubCondition(filterArray, 0);
-        }
-
-        private static boolean parseSubCondition(char[] filterArray, int i) {
-            Stack<Character> currentGroup = new Stack<>();
-            currentGroup.push('(');
-            int j = i + 1;
-            StringBuilder currentCondition = new StringBuilder();
-            boolean orCondition = false;
-            Boolean isTrue = null;
-            //(&amp;(osgi.os=macosx)(|(osgi.arch=aarch64)(osgi.arch=x86_64)))
-
-            while (!currentGroup.isEmpty()) {
-                char c = filterArray[j];
-                if (c == '(') {
-                    if (currentGroup.size() == 1) {
-                        if (!currentCondition.isEmpty()) {
-                            String condition = currentCondition.toString();
-                            switch (condition) {
-                                case "&amp;":
-                                    break;
-                                case "|":
-                                    orCondition = true;
-                                    break;
-                                default:
-                                    return evalSimpleCondition(condition);
-                            }
-                            currentCondition = new StringBuilder();
-                        }
-                        if (isTrue == null) {
-                            isTrue = parseSubCondition(filterArray, j);
-                        } else {
-                            if (orCondition) {
-                                isTrue |= parseSubCondition(filterArray, j);
-                            } else {
-                                isTrue &= parseSubCondition(filterArray, j);
-                            }
-                        }
-                    }
-                    currentGroup.push('(');
-                } else if (c == ')') {
-                    if (!currentCondition.isEmpty()) {
-                        String condition = currentCondition.toString();
-                        switch (condition) {
-                            case "&amp;":
-                                break;
-                            case "|":
-                                orCondition = true;
-                                break;
-                            default:
-                                return evalSimpleCondition(condition);
-                        }
-                        currentCondition = new StringBuilder();
-                    }
-                    currentGroup.pop();
-                } else if (currentGroup.size() == 1) {
-                    currentCondition.append(filterArray[j]);
-                }
-                j++;
-            }
-            return isTrue == null | Boolean.TRUE.equals(isTrue);
-        }
-        private static boolean evalSimpleCondition(String condition) {
-            String[] split = condition.split("=");
-            if (split.length != 2) {
-                return true;
-            }
-            String parameter = split[0];
-            String value = split[1];
-            switch (parameter) {
-                case ContentFileConstants.OS_FILTER -> {
-                    return value.equals(BundleInfo.currentOS);
-                }
-                case ContentFileConstants.WS_FILTER -> {
-                    return value.equals(BundleInfo.currentWS);
-                }
-                case ContentFileConstants.ARCH_FILTER -> {
-                    return value.equals(BundleInfo.currentArch);
-                }
-            }
-            return true;
-        }
-
-    }
-
 }
@@ -2,28 +2,49 @@
 package com.dbeaver.osgi.dependency.processing.xml;
 
 import com.dbeaver.osgi.dependency.processing.Artifact;
-import com.dbeaver.osgi.dependency.processing.p2.repository.exception.RepositoryInitialisationError;
+import com.dbeaver.osgi.dependency.processing.p2.ArtifactIndex;
+import com.dbeaver.osgi.dependency.processing.util.ArtifactChecksum;
+import com.dbeaver.osgi.dependency.processing.util.SymbolTable;
 import com.dbeaver.osgi.dependency.processing.util.Version;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 
 public class IndexFileParser {
     public static final IndexFileParser INSTANCE = new IndexFileParser();
-    private final DocumentBuilder builder;
+    private static final String ARTIFACT_ELEMENT = "artifact";
+    private static final String ARTIFACTS_ELEMENT = "artifacts";
+    private static final String PROPERTY_ELEMENT = "property";
+    private static final String MIRROR_ELEMENT = "mirror";
+    private static final String PROCESSING_ELEMENT = "processing";
+    private static final String FORMAT_PROPERTY = "format";
+    // Artifact properties with the download checksum, the strongest algorithm first
+    private static final Map<String, String> CHECKSUM_ALGORITHMS = createChecksumAlgorithms();
 
-    public List<String> listChildrenRepositoriesFromFile(File file) throws IOException, SAXException {
-        Document doc = builder.parse(file);
+    private final XMLInputFactory inputFactory = createInputFactory();
+    private final ThreadLocal<DocumentBuilder> builder = ThreadLocal.withInitial(IndexFileParser::createBuilder);
+
+    public List<String> listChildrenRepositories(InputStream inputStream) throws IOException, SAXException {
+        Document doc = builder.get().parse(inputStream);
         NodeList nodeList = doc.getElementsByTagName("child");
         List<String> locations = new ArrayList<>();
         for (int temp = 0; temp < nodeList.getLength(); temp++) {
@@ -37,45 +58,146 @@ public class IndexFileParser {
 
     }
 
-    public List<Artifact> listArtifactsFromIndexFile(File file) throws IOException, SAXException, RepositoryInitialisationError {
-        Document document = builder.parse(file);
-        NodeList artifactNodeList = getArtifactRootNode(document);
-        ArrayList<Artifact> artifacts = new ArrayList<>();
-        for (int i = 0; i < artifactNodeList.getLength(); i++) {
-            Node node = artifactNodeList.item(i);
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
-                Element element = (Element) node;
-                String classifier = element.getAttribute("classifier");
-                String id = element.getAttribute("id");
-                Version version = new Version(element.getAttribute("version"));
-                artifacts.add(new Artifact(classifier, id, version));
-            } else {
-                throw new RepositoryInitialisationError("Incorrect index file structure");
+    /**
+     * Reads the artifact list, the download checksum of every artifact is captured from its properties.
+     * Checksums of processed descriptors (e.g. pack200) describe the packed file and are skipped.
+     */
+    public ArtifactIndex readArtifactIndex(InputStream inputStream) throws XMLStreamException {
+        ArtifactIndex index = new ArtifactIndex();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+        try {
+            Artifact artifact = null;
+            Map<String, String> checksums = new HashMap<>();
+            boolean processed = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String localName = reader.getLocalName();
+                    if (ARTIFACT_ELEMENT.equals(localName)) {
+                        artifact = readArtifact(reader);
+                        checksums.clear();
+                        processed = false;
+                    } else if (artifact != null && PROPERTY_ELEMENT.equals(localName)) {
+                        String name = reader.getAttributeValue(null, "name");
+                        String value = reader.getAttributeValue(null, "value");
+                        if (FORMAT_PROPERTY.equals(name)) {
+                            processed = true;
+                        } else if (name != null && value != null && CHECKSUM_ALGORITHMS.containsKey(name)) {
+                            checksums.put(name, value);
+                        }
+                    } else if (artifact != null && PROCESSING_ELEMENT.equals(localName)) {
+                        processed = true;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && artifact != null && ARTIFACT_ELEMENT.equals(reader.getLocalName())) {
+                    index.add(artifact, processed ? null : getStrongestChecksum(checksums));
+                    artifact = null;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    @Nullable
+    private static Artifact readArtifact(@NotNull XMLStreamReader reader) {
+        String classifier = reader.getAttributeValue(null, "classifier");
+        String id = reader.getAttributeValue(null, "id");
+        String version = reader.getAttributeValue(null, "version");
+        if (id == null || version == null) {
+            return null;
+        }
+        SymbolTable symbols = SymbolTable.INSTANCE;
+        return new Artifact(symbols.intern(classifier), symbols.intern(id), symbols.internVersion(new Version(version)));
+    }
+
+    @Nullable
+    private static ArtifactChecksum getStrongestChecksum(@NotNull Map<String, String> checksums) {
+        for (Map.Entry<String, String> algorithm : CHECKSUM_ALGORITHMS.entrySet()) {
+            String value = checksums.get(algorithm.getKey());
+            if (value != null && !value.isBlank()) {
+                return new ArtifactChecksum(algorithm.getValue(), value.trim());
             }
         }
-        return artifacts;
+        return null;
     }
 
-    private static NodeList getArtifactRootNode(Document document) {
-        Element root = document.getDocumentElement();
-        NodeList artifactRepository = root.getElementsByTagName("artifactRepository");
-        for (int i = 0; i < artifactRepository.getLength(); i++) {
-            Node item = artifactRepository.item(i);
-            if (item.getNodeType() == Node.ELEMENT_NODE && "properties".equals(((Element) item).getTagName())) {
-                root = ((Element) item);
-                break;
+    /**
+     * Reads the repository-level properties, stops before the artifact list.
+     */
+    public Map<String, String> readRepositoryProperties(InputStream inputStream) throws XMLStreamException {
+        Map<String, String> properties = new LinkedHashMap<>();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String localName = reader.getLocalName();
+                if (ARTIFACTS_ELEMENT.equals(localName)) {
+                    break;
+                }
+                if (PROPERTY_ELEMENT.equals(localName)) {
+                    String name = reader.getAttributeValue(null, "name");
+                    String value = reader.getAttributeValue(null, "value");
+                    if (name != null && value != null) {
+                        properties.put(name, value);
+                    }
+                }
             }
+        } finally {
+            reader.close();
         }
-        return root.getElementsByTagName("artifact");
+        return properties;
     }
 
-    private IndexFileParser() {
+    /**
+     * Reads the mirror list the {@code p2.mirrorsURL} property points to, mirrors are kept in the server order.
+     */
+    public List<String> listMirrors(InputStream inputStream) throws XMLStreamException {
+        List<String> mirrors = new ArrayList<>();
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && MIRROR_ELEMENT.equals(reader.getLocalName())) {
+                    String url = reader.getAttributeValue(null, "url");
+                    if (url != null && !url.isBlank()) {
+                        mirrors.add(url.trim());
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return mirrors;
+    }
+
+    private static Map<String, String> createChecksumAlgorithms() {
+        Map<String, String> algorithms = new LinkedHashMap<>();
+        algorithms.put("download.checksum.sha-256", "SHA-256");
+        algorithms.put("download.checksum.md5", "MD5");
+        // Written by p2 before the checksum properties were generalized
+        algorithms.put("download.md5", "MD5");
+        return algorithms;
+    }
+
+    private static DocumentBuilder createBuilder() {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setIgnoringElementContentWhitespace(true);
         try {
-            builder = factory.newDocumentBuilder();
+            return factory.newDocumentBuilder();
         } catch (Exception exception) {
             throw new RuntimeException(exception);
         }
     }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    private IndexFileParser() {
+    }
 }
@@ -0,0 +1,273 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.xml;
+
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
+import org.jkiss.code.NotNull;
+import org.jkiss.code.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled LDAP filter of an installable unit, e.g. {@code (&(osgi.os=linux)(|(osgi.arch=x86_64)(osgi.arch=aarch64)))}.
+ * <p>
+ * Every distinct filter text is compiled once. Comparisons of properties the target environment does not define
+ * do not restrict the unit, malformed filters match everything.
+ */
+public final class LdapFilter {
+    private static final Logger log = LoggerFactory.getLogger(LdapFilter.class);
+
+    private static final Map<String, LdapFilter> filters = new ConcurrentHashMap<>();
+    private static final LdapFilter MATCH_ALL = new LdapFilter(environment -> null);
+
+    private final Node root;
+
+    private LdapFilter(@NotNull Node root) {
+        this.root = root;
+    }
+
+    @NotNull
+    public static LdapFilter compile(@NotNull String filter) {
+        String text = filter.trim();
+        if (text.length() <= 1) {
+            return MATCH_ALL;
+        }
+        LdapFilter compiled = filters.get(text);
+        if (compiled != null) {
+            return compiled;
+        }
+        return filters.computeIfAbsent(text, LdapFilter::parse);
+    }
+
+    public boolean matches(@NotNull TargetEnvironment environment) {
+        return root.evaluate(environment) != Boolean.FALSE;
+    }
+
+    @NotNull
+    private static LdapFilter parse(@NotNull String text) {
+        try {
+            Parser parser = new Parser(text);
+            Node node = parser.parseFilter();
+            parser.skipWhitespace();
+            if (parser.position != text.length()) {
+                throw new IllegalArgumentException("Unexpected trailing characters at " + parser.position);
+            }
+            return new LdapFilter(node);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.debug("Cannot parse filter '" + text + "', it will be ignored", e);
+            return MATCH_ALL;
+        }
+    }
+
+    /**
+     * Evaluates to null if the filter only depends on properties the environment does not define.
+     */
+    private interface Node {
+        @Nullable
+        Boolean evaluate(@NotNull TargetEnvironment environment);
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        private Parser(@NotNull String text) {
+            this.text = text;
+        }
+
+        @NotNull
+        private Node parseFilter() {
+            skipWhitespace();
+            expect('(');
+            skipWhitespace();
+            Node node = switch (text.charAt(position)) {
+                case '&' -> {
+                    position++;
+                    yield and(parseList());
+                }
+                case '|' -> {
+                    position++;
+                    yield or(parseList());
+                }
+                case '!' -> {
+                    position++;
+                    yield not(parseFilter());
+                }
+                default -> parseItem();
+            };
+            skipWhitespace();
+            expect(')');
+            return node;
+        }
+
+        @NotNull
+        private List<Node> parseList() {
+            List<Node> nodes = new ArrayList<>();
+            skipWhitespace();
+            while (text.charAt(position) == '(') {
+                nodes.add(parseFilter());
+                skipWhitespace();
+            }
+            if (nodes.isEmpty()) {
+                throw new IllegalArgumentException("Empty filter list at " + position);
+            }
+            return nodes;
+        }
+
+        @NotNull
+        private Node parseItem() {
+            int start = position;
+            while ("=<>~()".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String attribute = text.substring(start, position).trim();
+            if (attribute.isEmpty()) {
+                throw new IllegalArgumentException("Missing attribute at " + start);
+            }
+            char operator = text.charAt(position);
+            if (operator != '=') {
+                position++;
+                expect('=');
+            } else {
+                position++;
+            }
+            StringBuilder value = new StringBuilder();
+            boolean wildcard = false;
+            while (text.charAt(position) != ')') {
+                char c = text.charAt(position++);
+                if (c == '\\') {
+                    value.append(text.charAt(position++));
+                } else if (c == '*' && operator == '=') {
+                    wildcard = true;
+                    // Wildcards are marked with a character not allowed in values, so escaped asterisks stay literal
+                    value.append('\0');
+                } else if (c == '(') {
+                    throw new IllegalArgumentException("Unexpected '(' at " + (position - 1));
+                } else {
+                    value.append(c);
+                }
+            }
+            String expected = value.toString();
+            return switch (operator) {
+                case '~' -> comparison(attribute, actual -> actual.equalsIgnoreCase(expected.trim()));
+                case '>' -> comparison(attribute, actual -> actual.compareTo(expected) >= 0);
+                case '<' -> comparison(attribute, actual -> actual.compareTo(expected) <= 0);
+                case '=' -> {
+                    if (!wildcard) {
+                        yield comparison(attribute, actual -> actual.equals(expected));
+                    }
+                    if (expected.equals("\0")) {
+                        yield comparison(attribute, actual -> true);
+                    }
+                    String[] parts = expected.split("\0", -1);
+                    yield comparison(attribute, actual -> matchesSubstrings(actual, parts));
+                }
+                default -> throw new IllegalArgumentException("Unknown operator '" + operator + "'");
+            };
+        }
+
+        private void expect(char c) {
+            if (text.charAt(position) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + position);
+            }
+            position++;
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+    }
+
+    @NotNull
+    private static Node comparison(@NotNull String attribute, @NotNull ValueMatcher matcher) {
+        return environment -> {
+            String actual = environment.getProperty(attribute);
+            return actual == null ? null : matcher.matches(actual);
+        };
+    }
+
+    @NotNull
+    private static Node and(@NotNull List<Node> nodes) {
+        Node[] operands = nodes.toArray(Node[]::new);
+        return environment -> {
+            Boolean result = null;
+            for (Node operand : operands) {
+                Boolean value = operand.evaluate(environment);
+                if (value == Boolean.FALSE) {
+                    return false;
+                }
+                if (value != null) {
+                    result = true;
+                }
+            }
+            return result;
+        };
+    }
+
+    @NotNull
+    private static Node or(@NotNull List<Node> nodes) {
+        Node[] operands = nodes.toArray(Node[]::new);
+        return environment -> {
+            Boolean result = null;
+            for (Node operand : operands) {
+                Boolean value = operand.evaluate(environment);
+                if (value == Boolean.TRUE) {
+                    return true;
+                }
+                if (value != null) {
+                    result = false;
+                }
+            }
+            return result;
+        };
+    }
+
+    @NotNull
+    private static Node not(@NotNull Node node) {
+        return environment -> {
+            Boolean value = node.evaluate(environment);
+            return value == null ? null : !value;
+        };
+    }
+
+    private static boolean matchesSubstrings(@NotNull String value, @NotNull String[] parts) {
+        if (!value.startsWith(parts[0])) {
+            return false;
+        }
+        int position = parts[0].length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int index = value.indexOf(parts[i], position);
+            if (index < 0) {
+                return false;
+            }
+            position = index + parts[i].length();
+        }
+        String last = parts[parts.length - 1];
+        return value.length() - position >= last.length() && value.endsWith(last);
+    }
+
+    private interface ValueMatcher {
+        boolean matches(@NotNull String value);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.xml;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentFileChunkerTest {
+    private static final String HEADER = "<?xml version='1.0' encoding='UTF-8'?>\n<repository name='test'>\n  <units size='4'>\n";
+    private static final String FOOTER = "</units>\n</repository>\n";
+
+    @Test
+    void splitsAtUnitBoundaries() {
+        String units = unit("a") + unit("b") + unit("c") + unit("d");
+        List<String> chunks = split(HEADER + units + FOOTER, 2);
+        assertEquals(2, chunks.size());
+        for (String chunk : chunks) {
+            assertTrue(chunk.startsWith("<unit "), chunk);
+        }
+        assertEquals(units, String.join("", chunks));
+    }
+
+    @Test
+    void singleChunk() {
+        String units = unit("a") + unit("b");
+        assertEquals(List.of(units), split(HEADER + units + FOOTER, 1));
+    }
+
+    @Test
+    void noMoreChunksThanUnits() {
+        String units = unit("a") + unit("b") + unit("c");
+        List<String> chunks = split(HEADER + units + FOOTER, 16);
+        assertEquals(3, chunks.size());
+        assertEquals(units, String.join("", chunks));
+    }
+
+    @Test
+    void unitsElementIsNotAUnit() {
+        String units = "<unit>\n</unit>\n<unit\tid='b'>\n</unit>\n";
+        List<String> chunks = split("<units>\n" + units + "</units>", 4);
+        assertEquals(List.of("<unit>\n</unit>\n", "<unit\tid='b'>\n</unit>\n"), chunks);
+    }
+
+    @Test
+    void emptyUnits() {
+        assertEquals(List.of(), split(HEADER + FOOTER, 4));
+    }
+
+    @Test
+    void unexpectedLayout() {
+        assertNull(ContentFileChunker.split(wrap(HEADER + unit("a")), 4));
+    }
+
+    @Test
+    void chunkIsStandaloneDocument() throws IOException {
+        ByteBuffer chunk = ContentFileChunker.split(wrap(HEADER + unit("a") + unit("b") + FOOTER), 2).get(1);
+        try (InputStream inputStream = ContentFileChunker.openChunk(chunk)) {
+            String document = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals("<?xml version='1.0' encoding='UTF-8'?>\n<units>\n" + unit("b") + "\n</units>\n", document);
+        }
+        // The chunk can be opened again
+        assertEquals(unit("b").length(), chunk.remaining());
+    }
+
+    private static String unit(String id) {
+        return "<unit id='" + id + "' version='1.0.0'>\n  <property name='x' value='&lt;unit'/>\n</unit>\n";
+    }
+
+    private static List<String> split(String content, int chunkCount) {
+        return ContentFileChunker.split(wrap(content), chunkCount).stream()
+            .map(it -> StandardCharsets.UTF_8.decode(it).toString())
+            .toList();
+    }
+
+    private static ByteBuffer wrap(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.xml;
+
+import com.dbeaver.osgi.dependency.processing.p2.P2BundleLookupCache;
+import com.dbeaver.osgi.dependency.processing.p2.RemoteP2Feature;
+import com.dbeaver.osgi.dependency.processing.p2.repository.P2Repository;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteBundleStore;
+import com.dbeaver.osgi.dependency.processing.p2.repository.RemoteP2BundleInfo;
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
+import org.jkiss.code.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a synthetic content.xml, sequential and split into chunks.
+ * Run with {@code org.openjdk.jmh.Main ContentFileHandlerBenchmark} on the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ContentFileHandlerBenchmark {
+    private static final List<TargetEnvironment> ENVIRONMENTS = List.of(
+        TargetEnvironment.fromString("linux/gtk/x86_64"),
+        TargetEnvironment.fromString("win32/win32/x86_64"),
+        TargetEnvironment.fromString("macosx/cocoa/aarch64")
+    );
+
+    @Param({"1000", "20000"})
+    public int unitCount;
+
+    private byte[] content;
+    private P2Repository repository;
+
+    @Setup
+    public void setUp() {
+        content = generateContent(unitCount).getBytes(StandardCharsets.UTF_8);
+        repository = new BenchmarkRepository();
+    }
+
+    // Parsed units are added to the process-wide store, every invocation would grow it otherwise.
+    // The symbol table gets the same strings each time, so it only grows by the first invocation.
+    @TearDown(Level.Invocation)
+    public void dropUnits() {
+        RemoteBundleStore.INSTANCE.compact(new BitSet());
+    }
+
+    @Benchmark
+    public P2BundleLookupCache parse() throws Exception {
+        P2BundleLookupCache cache = new P2BundleLookupCache();
+        ContentFileHandler.indexContent(repository, new ByteArrayInputStream(content), cache, null, ENVIRONMENTS);
+        return cache;
+    }
+
+    @Benchmark
+    public P2BundleLookupCache parseInChunks() throws Exception {
+        P2BundleLookupCache cache = new P2BundleLookupCache();
+        ContentFileHandler.indexContentInChunks(repository, ByteBuffer.wrap(content), cache, ENVIRONMENTS);
+        return cache;
+    }
+
+    static String generateContent(int unitCount) {
+        StringBuilder xml = new StringBuilder(unitCount * 1200);
+        xml.append("<?xml version='1.0' encoding='UTF-8'?>\n");
+        xml.append("<repository name='benchmark' type='org.eclipse.equinox.internal.p2.metadata.repository.LocalMetadataRepository' version='1'>\n");
+        xml.append("  <units size='").append(unitCount).append("'>\n");
+        for (int i = 0; i < unitCount; i++) {
+            String name = "org.benchmark.bundle" + i;
+            String version = "1.0." + i;
+            xml.append("    <unit id='").append(name).append("' version='").append(version).append("'>\n");
+            if (i % 4 == 0) {
+                xml.append("      <filter>(osgi.os=").append(i % 8 == 0 ? "linux" : "win32").append(")</filter>\n");
+            }
+            xml.append("      <properties size='2'>\n");
+            xml.append("        <property name='org.eclipse.equinox.p2.name' value='Benchmark bundle ").append(i).append("'/>\n");
+            xml.append("        <property name='maven-type' value='jar'/>\n");
+            xml.append("      </properties>\n");
+            xml.append("      <provides size='3'>\n");
+            xml.append("        <provided namespace='org.eclipse.equinox.p2.iu' name='").append(name)
+                .append("' version='").append(version).append("'/>\n");
+            xml.append("        <provided namespace='osgi.bundle' name='").append(name)
+                .append("' version='").append(version).append("'/>\n");
+            xml.append("        <provided namespace='java.package' name='").append(name)
+                .append(".api' version='").append(version).append("'/>\n");
+            xml.append("      </provides>\n");
+            if (i > 0) {
+                String dependency = "org.benchmark.bundle" + (i - 1);
+                xml.append("      <requires size='2'>\n");
+                xml.append("        <required namespace='osgi.bundle' name='").append(dependency)
+                    .append("' range='[1.0.0,2.0.0)'/>\n");
+                xml.append("        <required namespace='java.package' name='").append(dependency)
+                    .append(".api' range='0.0.0'>\n");
+                xml.append("          <filter>(osgi.os=win32)</filter>\n");
+                xml.append("        </required>\n");
+                xml.append("      </requires>\n");
+            }
+            xml.append("      <artifacts size='1'>\n");
+            xml.append("        <artifact classifier='osgi.bundle' id='").append(name)
+                .append("' version='").append(version).append("'/>\n");
+            xml.append("      </artifacts>\n");
+            xml.append("      <touchpoint id='org.eclipse.equinox.p2.osgi' version='1.0.0'/>\n");
+            xml.append("      <touchpointData size='1'>\n");
+            xml.append("        <instructions size='1'>\n");
+            xml.append("          <instruction key='manifest'>Bundle-SymbolicName: ").append(name)
+                .append("&#xA;Bundle-Version: ").append(version).append("&#xA;</instruction>\n");
+            xml.append("        </instructions>\n");
+            xml.append("      </touchpointData>\n");
+            xml.append("    </unit>\n");
+        }
+        xml.append("  </units>\n");
+        xml.append("</repository>\n");
+        return xml.toString();
+    }
+
+    // Treats every unit as having an artifact, so the benchmark does not depend on artifacts.xml
+    private static class BenchmarkRepository extends P2Repository {
+        private static final URI LOCATION = URI.create("file:///benchmark/");
+
+        @NotNull
+        @Override
+        public URI getLocation() {
+            return LOCATION;
+        }
+
+        @Override
+        public boolean isIndexed(String id, String version) {
+            return true;
+        }
+
+        @Override
+        protected Path fetchMetadataFile(@NotNull String filename) {
+            return null;
+        }
+
+        @NotNull
+        @Override
+        protected String getMetadataChecksum(@NotNull String filename) {
+            return "";
+        }
+
+        @NotNull
+        @Override
+        protected Path getIndexSnapshotPath() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Path resolveBundle(RemoteP2BundleInfo remoteP2BundleInfo) {
+            return null;
+        }
+
+        @Override
+        public Path resolveFeature(RemoteP2Feature remoteP2Feature) {
+            return null;
+        }
+    }
+}
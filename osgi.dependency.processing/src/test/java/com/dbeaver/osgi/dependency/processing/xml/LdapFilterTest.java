@@ -0,0 +1,120 @@
+/*
+ * DBeaver - Universal Database Manager
+ * Copyright (C) 2010-2024 DBeaver Corp and others
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dbeaver.osgi.dependency.processing.xml;
+
+import com.dbeaver.osgi.dependency.processing.util.TargetEnvironment;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LdapFilterTest {
+    private static final TargetEnvironment LINUX = TargetEnvironment.fromString("linux/gtk/x86_64");
+    private static final TargetEnvironment WINDOWS = TargetEnvironment.fromString("win32/win32/x86_64");
+    private static final TargetEnvironment MAC = TargetEnvironment.fromString("macosx/cocoa/aarch64");
+
+    @Test
+    void equality() {
+        LdapFilter filter = LdapFilter.compile("(osgi.os=linux)");
+        assertTrue(filter.matches(LINUX));
+        assertFalse(filter.matches(WINDOWS));
+    }
+
+    @Test
+    void and() {
+        LdapFilter filter = LdapFilter.compile("(&(osgi.os=linux)(|(osgi.arch=x86_64)(osgi.arch=aarch64)))");
+        assertTrue(filter.matches(LINUX));
+        assertFalse(filter.matches(WINDOWS));
+        assertFalse(filter.matches(MAC));
+        assertTrue(filter.matches(new TargetEnvironment("linux", "gtk", "aarch64")));
+        assertFalse(filter.matches(new TargetEnvironment("linux", "gtk", "ppc64le")));
+    }
+
+    @Test
+    void or() {
+        LdapFilter filter = LdapFilter.compile("(|(osgi.os=win32)(osgi.os=macosx))");
+        assertFalse(filter.matches(LINUX));
+        assertTrue(filter.matches(WINDOWS));
+        assertTrue(filter.matches(MAC));
+    }
+
+    @Test
+    void not() {
+        LdapFilter filter = LdapFilter.compile("(!(osgi.os=win32))");
+        assertTrue(filter.matches(LINUX));
+        assertFalse(filter.matches(WINDOWS));
+    }
+
+    @Test
+    void whitespace() {
+        LdapFilter filter = LdapFilter.compile("  ( & (osgi.os=linux)\n (osgi.ws=gtk) )  ");
+        assertTrue(filter.matches(LINUX));
+        assertFalse(filter.matches(WINDOWS));
+        // Whitespace within a value is significant
+        assertFalse(LdapFilter.compile("(osgi.os=linux )").matches(LINUX));
+    }
+
+    @Test
+    void wildcards() {
+        assertTrue(LdapFilter.compile("(osgi.os=*)").matches(LINUX));
+        assertTrue(LdapFilter.compile("(osgi.arch=x86*)").matches(LINUX));
+        assertFalse(LdapFilter.compile("(osgi.arch=x86*)").matches(MAC));
+        assertTrue(LdapFilter.compile("(osgi.arch=*64)").matches(MAC));
+        assertTrue(LdapFilter.compile("(osgi.os=l*n*x)").matches(LINUX));
+        assertFalse(LdapFilter.compile("(osgi.os=lin*inux)").matches(LINUX));
+    }
+
+    @Test
+    void escapedAsteriskIsLiteral() {
+        LdapFilter filter = LdapFilter.compile("(osgi.os=linu\\*)");
+        assertFalse(filter.matches(LINUX));
+        assertTrue(filter.matches(new TargetEnvironment("linu*", "gtk", "x86_64")));
+    }
+
+    @Test
+    void approximateAndOrdering() {
+        assertTrue(LdapFilter.compile("(osgi.os~=LINUX)").matches(LINUX));
+        assertTrue(LdapFilter.compile("(osgi.os>=linux)").matches(WINDOWS));
+        assertFalse(LdapFilter.compile("(osgi.os<=linux)").matches(WINDOWS));
+        assertTrue(LdapFilter.compile("(osgi.os<=macosx)").matches(LINUX));
+    }
+
+    @Test
+    void undefinedPropertiesDoNotRestrict() {
+        assertTrue(LdapFilter.compile("(osgi.nl=de)").matches(LINUX));
+        assertTrue(LdapFilter.compile("(!(osgi.nl=de))").matches(LINUX));
+        assertTrue(LdapFilter.compile("(&(osgi.nl=de)(osgi.os=linux))").matches(LINUX));
+        assertFalse(LdapFilter.compile("(&(osgi.nl=de)(osgi.os=linux))").matches(WINDOWS));
+        assertTrue(LdapFilter.compile("(|(osgi.nl=de)(osgi.os=win32))").matches(WINDOWS));
+        assertFalse(LdapFilter.compile("(|(osgi.nl=de)(osgi.os=win32))").matches(LINUX));
+    }
+
+    @Test
+    void malformedFiltersMatchEverything() {
+        assertTrue(LdapFilter.compile("(osgi.os=linux").matches(WINDOWS));
+        assertTrue(LdapFilter.compile("(osgi.os=win32))").matches(LINUX));
+        assertTrue(LdapFilter.compile("(&)").matches(LINUX));
+        assertTrue(LdapFilter.compile("(=linux)").matches(WINDOWS));
+        assertTrue(LdapFilter.compile("").matches(LINUX));
+    }
+
+    @Test
+    void compiledOnce() {
+        assertSame(LdapFilter.compile("(osgi.ws=gtk)"), LdapFilter.compile(" (osgi.ws=gtk) "));
+    }
+}